@@ -0,0 +1,36 @@
+# Decoder for the columnar message export produced by
+# org.powertac.samplebroker.MessageColumns.
+#
+# Each packed message type is a little-endian buffer:
+#   int32 rowCount, int32 columnCount, then for each column
+#   int16 nameLength, name bytes, int8 kind ('i', 'l' or 'd'),
+#   followed by rowCount values of that kind.
+
+import struct
+import numpy as np
+
+_dtypes = {ord('i'): np.dtype('<i4'),
+           ord('l'): np.dtype('<i8'),
+           ord('d'): np.dtype('<f8')}
+
+def decode(packed):
+    """Returns a dict of column name -> numpy array for one message type"""
+    rows, cols = struct.unpack_from('<ii', packed, 0)
+    offset = 8
+    result = {}
+    for _ in range(cols):
+        (length,) = struct.unpack_from('<h', packed, offset)
+        offset += 2
+        name = bytes(packed[offset:offset + length]).decode('utf-8')
+        offset += length
+        dtype = _dtypes[packed[offset]]
+        offset += 1
+        result[name] = np.frombuffer(packed, dtype=dtype, count=rows, offset=offset)
+        offset += rows * dtype.itemsize
+    return result
+
+def decode_all(columns):
+    """Decodes the map returned by getContextColumns() or getPendingMessageColumns()"""
+    if columns is None:
+        return {}
+    return {msgType: decode(columns[msgType]) for msgType in columns}
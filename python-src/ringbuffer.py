@@ -0,0 +1,64 @@
+# Reader for the memory-mapped timeslot ring buffer written by
+# org.powertac.samplebroker.SharedRingBuffer. Open the transport through
+# the Envoy first:
+#
+#   envoy.openSharedTransport('/dev/shm/pybroker.ring', 64 * 1024 * 1024)
+#   ring = RingReader('/dev/shm/pybroker.ring')
+#   ...
+#   ts = contextManager.waitForTimeslotComplete(ts)
+#   frame = ring.latest()
+
+import mmap
+import struct
+
+import columns
+
+MAGIC = 0x42525450
+HEADER = 64
+FRAME_HEADER = 24
+
+class RingReader:
+    def __init__(self, path):
+        self.file = open(path, 'rb')
+        self.map = mmap.mmap(self.file.fileno(), 0, access=mmap.ACCESS_READ)
+        magic, version = struct.unpack_from('<ii', self.map, 0)
+        if magic != MAGIC:
+            raise ValueError('{} is not a broker ring buffer'.format(path))
+        self.view = memoryview(self.map)
+
+    def sequence(self):
+        """Sequence number of the last committed frame, 0 if none"""
+        return struct.unpack_from('<q', self.map, 16)[0]
+
+    def latest(self):
+        """Returns (sequence, timeslot, {type: {column: ndarray}}) for the
+        last committed frame, or None if nothing has been committed or the
+        writer lapped us while reading."""
+        seq, offset = struct.unpack_from('<qq', self.map, 16)
+        if seq == 0:
+            return None
+        stamp, timeslot, count, length = struct.unpack_from('<qiii', self.map, offset)
+        if stamp != seq:
+            return None
+        # copy the frame out, then make sure it was not overwritten meanwhile
+        frame = bytes(self.view[offset:offset + length])
+        oldest = struct.unpack_from('<q', self.map, 32)[0]
+        if oldest > seq:
+            return None
+        pos = FRAME_HEADER
+        result = {}
+        for _ in range(count):
+            (nameLength,) = struct.unpack_from('<h', frame, pos)
+            pos += 2
+            name = frame[pos:pos + nameLength].decode('utf-8')
+            pos += nameLength
+            (size,) = struct.unpack_from('<i', frame, pos)
+            pos += 4
+            result[name] = columns.decode(frame[pos:pos + size])
+            pos += size
+        return seq, timeslot, result
+
+    def close(self):
+        self.view.release()
+        self.map.close()
+        self.file.close()
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * The tariffs currently offered by competing brokers, indexed by id, by
+ * power type and by broker. Each tariff sits in one bucket per power type
+ * and one per broker, and remembers its positions there, so adding and
+ * revoking are constant-time: a revoked tariff is replaced in each bucket
+ * by the bucket's last one.
+ *
+ * Every addition and revocation is also logged with the timeslot in which it
+ * happened, so Python can keep its own copy up to date from the changes
+ * instead of re-reading every tariff each timeslot.
+ *
+ * @author John Collins
+ */
+public class CompetingTariffRegistry
+{
+  private final IdIndex index = new IdIndex();
+  private Entry[] entries = new Entry[64]; // by index slot, null if revoked
+  private int size = 0;
+  private final Map<PowerType, List<Entry>> byType = new HashMap<>();
+  private final Map<String, List<Entry>> byBroker = new HashMap<>();
+
+  // change log, in timeslot order
+  private int[] logTimeslots = new int[64];
+  private long[] logIds = new long[64];
+  private boolean[] logAdded = new boolean[64];
+  private int logSize = 0;
+
+  public CompetingTariffRegistry ()
+  {
+    super();
+  }
+
+  /**
+   * Adds a tariff in the given timeslot. Returns false if it is already
+   * registered.
+   */
+  public synchronized boolean add (TariffSpecification spec, int timeslot)
+  {
+    int slot = index.add(spec.getId());
+    if (slot >= entries.length)
+      entries = Arrays.copyOf(entries, entries.length * 2);
+    if (null != entries[slot])
+      return false;
+    Entry entry = new Entry(spec);
+    List<Entry> typeBucket =
+        byType.computeIfAbsent(spec.getPowerType(), k -> new ArrayList<>());
+    entry.typePos = typeBucket.size();
+    typeBucket.add(entry);
+    List<Entry> brokerBucket =
+        byBroker.computeIfAbsent(brokerOf(spec), k -> new ArrayList<>());
+    entry.brokerPos = brokerBucket.size();
+    brokerBucket.add(entry);
+    entries[slot] = entry;
+    size += 1;
+    log(timeslot, spec.getId(), true);
+    return true;
+  }
+
+  /**
+   * Revokes a tariff in the given timeslot. Returns the revoked tariff, or
+   * null if it is not registered.
+   */
+  public synchronized TariffSpecification revoke (long id, int timeslot)
+  {
+    int slot = index.find(id);
+    if (slot < 0 || null == entries[slot])
+      return null;
+    Entry entry = entries[slot];
+    entries[slot] = null;
+    TariffSpecification spec = entry.spec;
+    List<Entry> typeBucket = byType.get(spec.getPowerType());
+    Entry moved = swapRemove(typeBucket, entry.typePos);
+    if (null != moved)
+      moved.typePos = entry.typePos;
+    List<Entry> brokerBucket = byBroker.get(brokerOf(spec));
+    moved = swapRemove(brokerBucket, entry.brokerPos);
+    if (null != moved)
+      moved.brokerPos = entry.brokerPos;
+    size -= 1;
+    log(timeslot, id, false);
+    return spec;
+  }
+
+  /**
+   * Returns the tariff with the given id, or null if it is not registered.
+   */
+  public synchronized TariffSpecification get (long id)
+  {
+    int slot = index.find(id);
+    if (slot < 0 || null == entries[slot])
+      return null;
+    return entries[slot].spec;
+  }
+
+  /**
+   * Number of registered tariffs.
+   */
+  public synchronized int size ()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the registered tariffs for the given power type, in no
+   * particular order.
+   */
+  public synchronized List<TariffSpecification> getByPowerType (PowerType type)
+  {
+    return specs(byType.get(type));
+  }
+
+  /**
+   * Returns the registered tariffs of the given broker, in no particular
+   * order.
+   */
+  public synchronized List<TariffSpecification> getByBroker (String username)
+  {
+    return specs(byBroker.get(username));
+  }
+
+  /**
+   * Ids of the registered tariffs for the given power type, by name.
+   */
+  public synchronized long[] getIds (String powerType)
+  {
+    return ids(byType.get(PowerType.valueOf(powerType)));
+  }
+
+  /**
+   * Ids of the registered tariffs of the given broker.
+   */
+  public synchronized long[] getIdsByBroker (String username)
+  {
+    return ids(byBroker.get(username));
+  }
+
+  /**
+   * Ids of the tariffs added in timeslots first through last inclusive, in
+   * order of addition.
+   */
+  public synchronized long[] getAdded (int first, int last)
+  {
+    return changes(first, last, true);
+  }
+
+  /**
+   * Ids of the tariffs revoked in timeslots first through last inclusive, in
+   * order of revocation.
+   */
+  public synchronized long[] getRevoked (int first, int last)
+  {
+    return changes(first, last, false);
+  }
+
+  private long[] changes (int first, int last, boolean added)
+  {
+    // the log is in timeslot order, so find the start from the end
+    int start = logSize;
+    while (start > 0 && logTimeslots[start - 1] >= first)
+      start -= 1;
+    long[] result = new long[logSize - start];
+    int count = 0;
+    for (int i = start; i < logSize && logTimeslots[i] <= last; i++) {
+      if (logAdded[i] == added)
+        result[count++] = logIds[i];
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  private void log (int timeslot, long id, boolean added)
+  {
+    if (logSize == logIds.length) {
+      int capacity = logSize * 2;
+      logTimeslots = Arrays.copyOf(logTimeslots, capacity);
+      logIds = Arrays.copyOf(logIds, capacity);
+      logAdded = Arrays.copyOf(logAdded, capacity);
+    }
+    // keep the log sorted even if a caller lags behind
+    if (logSize > 0)
+      timeslot = Math.max(timeslot, logTimeslots[logSize - 1]);
+    logTimeslots[logSize] = timeslot;
+    logIds[logSize] = id;
+    logAdded[logSize] = added;
+    logSize += 1;
+  }
+
+  // Removes the entry at pos by moving the last one into its place; returns
+  // the moved entry, or null if pos was the last
+  private static Entry swapRemove (List<Entry> bucket, int pos)
+  {
+    Entry last = bucket.remove(bucket.size() - 1);
+    if (pos == bucket.size())
+      return null;
+    bucket.set(pos, last);
+    return last;
+  }
+
+  private static List<TariffSpecification> specs (List<Entry> bucket)
+  {
+    List<TariffSpecification> result = new ArrayList<>();
+    if (null != bucket) {
+      for (Entry entry : bucket)
+        result.add(entry.spec);
+    }
+    return result;
+  }
+
+  private static long[] ids (List<Entry> bucket)
+  {
+    if (null == bucket)
+      return new long[0];
+    long[] result = new long[bucket.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = bucket.get(i).spec.getId();
+    return result;
+  }
+
+  private static String brokerOf (TariffSpecification spec)
+  {
+    return spec.getBroker().getUsername();
+  }
+
+  // A registered tariff and its positions in its buckets
+  private static class Entry
+  {
+    final TariffSpecification spec;
+    int typePos;
+    int brokerPos;
+
+    Entry (TariffSpecification spec)
+    {
+      super();
+      this.spec = spec;
+    }
+  }
+}
@@ -17,8 +17,6 @@ package org.powertac.samplebroker;
 
 import org.apache.logging.log4j.Logger;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -27,6 +25,7 @@ import org.powertac.common.BankTransaction;
 import org.powertac.common.Broker;
 import org.powertac.common.CashPosition;
 import org.powertac.common.Competition;
+import org.powertac.common.Order;
 import org.powertac.common.TimeService;
 import org.powertac.common.Timeslot;
 import org.powertac.common.WeatherForecast;
@@ -46,6 +45,7 @@ import org.powertac.samplebroker.core.PowerTacBroker;
 import org.powertac.samplebroker.interfaces.Activatable;
 import org.powertac.samplebroker.interfaces.BrokerContext;
 import org.powertac.samplebroker.interfaces.Initializable;
+import org.powertac.samplebroker.interfaces.MarketManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -77,13 +77,16 @@ implements Initializable, Activatable
   @Autowired
   private WeatherForecastRepo weatherForecastRepo;
 
+  @Autowired
+  private MarketManager marketManager;
+
   private BrokerContext broker;
 
   // current cash balance
   private double cash = 0;
 
-  // Stored messages
-  private Map<String, List<Object>> pendingMessages;
+  // Stored messages, added from JMS threads and drained by Python
+  private MessageStore messages = new MessageStore();
   
   // synchronizing objects for session start, timeslot complete
   private Object startSync;
@@ -105,8 +108,9 @@ implements Initializable, Activatable
   {
     this.broker = broker;
     propertiesService.configureMe(this);
-    pendingMessages = new HashMap<>();
+    messages.clear();
     Envoy envoy = Envoy.getInstance();
+    envoy.newGame();
     envoy.registerService("ContextManager", this);
   }
 
@@ -164,8 +168,9 @@ implements Initializable, Activatable
   public void handleMessage (SimEnd se)
   {
     log.info("SimEnd");
-    addPendingMessage("SimEnd", se);
+    addPendingMessage(se);
     ended = true;
+    Envoy.getInstance().simEnd(timeslotRepo.currentSerialNumber());
   }
   
   /**
@@ -182,7 +187,7 @@ implements Initializable, Activatable
    */
   public void handleMessage (BankTransaction btx)
   {
-    addPendingMessage("BankTransaction", btx); // should be only one
+    addPendingMessage(btx); // should be only one
   }
 
   /**
@@ -190,7 +195,7 @@ implements Initializable, Activatable
    */
   public void handleMessage (CashPosition cp)
   {
-    addPendingMessage("CashPosition", cp);
+    addPendingMessage(cp);
     cash = cp.getBalance();
     log.info("Cash position: " + cash);
   }
@@ -201,7 +206,7 @@ implements Initializable, Activatable
    */
   public void handleMessage (DistributionReport dr)
   {
-    addPendingMessage("DistributionReport", dr);
+    addPendingMessage(dr);
   }
   
   /**
@@ -212,19 +217,19 @@ implements Initializable, Activatable
   public void handleMessage (Competition comp)
   {
     log.info("Competition {}", comp.getId());
-    addPendingMessage("Competition", comp);
+    addPendingMessage(comp);
   }
 
   public synchronized void handleMessage (CustomerBootstrapData cbd)
   {
     log.info("CustomerBootstrapData");
-    addPendingMessage("CustomerBootstrapData", cbd);
+    addPendingMessage(cbd);
   }
 
   public synchronized void handleMessage (MarketBootstrapData mbd)
   {
     log.info("MarketBootstrapData");
-    addPendingMessage("MarketBootstrapData", mbd);
+    addPendingMessage(mbd);
   }
 
   /**
@@ -233,33 +238,25 @@ implements Initializable, Activatable
   public void handleMessage (java.util.Properties serverProps)
   {
     log.info("ServerProps");
-    addPendingMessage("Properties", serverProps);
+    addPendingMessage(serverProps);
   }
   
   public void handleMessage (WeatherReport report)
   {
     log.info("Weather report {}", report.getTimeslotIndex());
-    addPendingMessage("WeatherReport", report);
+    addPendingMessage(report);
   }
   
   public void handleMessage (WeatherForecast fcst)
   {
     log.info("Weather forecast");
-    addPendingMessage("WeatherForecast", fcst);
+    addPendingMessage(fcst);
   }
 
-  private void addPendingMessage(String type, Object msg)
+  private void addPendingMessage(Object msg)
   {
-    if (null == pendingMessages) {
-      pendingMessages = new HashMap<String, List<Object>>();
-    }
-    List<Object> msgs = pendingMessages.get(type);
-    if (null == msgs) {
-      msgs = new ArrayList<Object>();
-      pendingMessages.put(type, msgs);
-    }
-    log.info("Adding {}", type);
-    msgs.add(msg);
+    log.info("Adding {}", msg.getClass().getSimpleName());
+    messages.add(msg);
   }
   
   /**
@@ -269,9 +266,29 @@ implements Initializable, Activatable
   public Map<String, List<Object>> getContextMessages ()
   {
     log.info("getContextMessages");
-    Map<String, List<Object>> result = pendingMessages;
+    Map<String, List<Object>> result = messages.drain();
     log.info("Returning {} message lists", result.size());
-    pendingMessages = null;
+    return result;
+  }
+
+  // Envoy installs Python's subscription here
+  MessageStore getMessageStore ()
+  {
+    return messages;
+  }
+
+  /**
+   * Returns the context messages for the current timeslot in columnar form,
+   * one packed byte[] per message type (see {@link MessageColumns}). Types
+   * that have no columnar layout, such as Competition and the bootstrap
+   * data, are left in place for getContextMessages().
+   */
+  public Map<String, byte[]> getContextColumns ()
+  {
+    Map<String, byte[]> result =
+        MessageColumns.extract(messages.drain(MessageColumns::hasLayout),
+                               messages.getSubscription());
+    log.info("Returning {} message columns", result.size());
     return result;
   }
   
@@ -287,6 +304,8 @@ implements Initializable, Activatable
   public void activate (int timeslot)
   {
     log.info("activate {}", timeslot);
+    // bulk data must be in place before Python is released
+    Envoy.getInstance().timeslotComplete(timeslotRepo.currentSerialNumber());
     synchronized(tcSync) {
       lastCompleteTimeslot = timeslotRepo.currentSerialNumber();
       tcSync.notifyAll();
@@ -311,10 +330,13 @@ implements Initializable, Activatable
   }
 
   /**
-   * Sends a message to the server
+   * Sends a message to the server. Orders are also noted by the
+   * MarketManager, so it does not send fallback orders on top of them.
    */
   public void sendMessage (Object message)
   {
+    if (message instanceof Order)
+      marketManager.recordOrder((Order) message);
     broker.sendMessage(message);
   }
 
@@ -15,13 +15,26 @@
  */
 package org.powertac.samplebroker;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import py4j.GatewayServer;
 import org.apache.logging.log4j.Logger;
 import org.powertac.samplebroker.core.BrokerRunner;
+import org.powertac.samplebroker.interfaces.TimeslotListener;
 
 /**
  * Provides access to Spring services and the ability to start the broker in a thread without
@@ -35,7 +48,44 @@ public class Envoy
   
   private static Envoy instance;
   
-  private Map<String, Object> services;
+  // Services that register themselves at startup
+  static final String[] REQUIRED_SERVICES =
+    {"ContextManager", "PortfolioManager", "MarketManager"};
+
+  // One future per service, completed when the service registers. Spring
+  // threads complete them while gateway threads wait on them.
+  private Map<String, CompletableFuture<Object>> services;
+  private CompletableFuture<Void> servicesReady;
+
+  // additional sessions, each in its own class loader, by handle
+  private Map<Integer, Object> sessions = new ConcurrentHashMap<>();
+  private AtomicInteger nextSessionHandle = new AtomicInteger(1);
+
+  // message types Python wants buffered, see subscribe()
+  private volatile MessageSubscription subscription = MessageSubscription.ALL;
+
+  // per-type buffer caps, see setBufferLimit()
+  private Map<MessageType, MessageStore.Limit> bufferLimits = new ConcurrentHashMap<>();
+  private volatile long blockTimeout = 1000l;
+
+  // messages kept after they are drained, see setHistoryDepth()
+  private MessageHistory history = new MessageHistory();
+
+  // startup timing
+  private volatile long sessionStart = 0l;
+  private volatile long startupMillis = -1l;
+
+  // optional bulk data path, see openSharedTransport()
+  private SharedRingBuffer transport;
+
+  // timeslot snapshots, captured once Python asks for them
+  private Object snapshotSync = new Object();
+  private boolean snapshotMode = false;
+  private TimeslotSnapshot pendingSnapshot;
+
+  // push-mode notification, see registerTimeslotListener()
+  private TimeslotListener listener;
+  private ExecutorService notifier;
   
   /**
    * main() method is how the py4j gateway gets set up.
@@ -50,7 +100,12 @@ public class Envoy
   public Envoy ()
   {
     super();
-    services = new HashMap<>();
+    services = new ConcurrentHashMap<>();
+    CompletableFuture<?>[] required = new CompletableFuture<?>[REQUIRED_SERVICES.length];
+    for (int i = 0; i < REQUIRED_SERVICES.length; i++)
+      required[i] = serviceFuture(REQUIRED_SERVICES[i]);
+    servicesReady = CompletableFuture.allOf(required);
+    servicesReady.thenRun(this::reportStartup);
   }
   
   /**
@@ -72,36 +127,657 @@ public class Envoy
   public void registerService (String name, Object service)
   {
     log.info("Registered {}", name);
-    services.put(name, service);
+    configureStore(service);
+    CompletableFuture<Object> future = serviceFuture(name);
+    if (!future.complete(service)) {
+      // re-registration, for example in a new game
+      services.put(name, CompletableFuture.completedFuture(service));
+    }
   }
 
+  /**
+   * Returns the named service, waiting for it to register if necessary. The
+   * caller is released as soon as that service registers. For a name that
+   * is not one of the required services, waits until the required services
+   * are all registered, then returns whatever is there, possibly null.
+   */
   public Object getService (String classname)
   {
-    // give Spring some time to start up
-    while (services.size() < 3) {
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException ie) {
-        log.error("Sleep interrupted");
+    CompletableFuture<?> future = services.get(classname);
+    try {
+      if (null == future) {
+        servicesReady.get();
+        future = services.get(classname);
+        if (null == future) {
+          log.warn("No service {}", classname);
+          return null;
+        }
       }
+      Object result = future.get();
+      log.info("returning {}", result.getClass().getCanonicalName());
+      return result;
+    } catch (InterruptedException e) {
+      log.error("Interrupted waiting for {}", classname);
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      log.error("Registration of {} failed: {}", classname, e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Returns the names of the message types the services buffer, which are
+   * the keys of the message maps and columnar exports.
+   */
+  public List<String> getMessageTypes ()
+  {
+    return MessageType.names();
+  }
+
+  /**
+   * Restricts the messages the services buffer to the named types. Messages
+   * of other types are dropped on arrival, and any already buffered are
+   * discarded.
+   */
+  public void subscribe (List<String> typeNames)
+  {
+    setSubscription(MessageSubscription.of(typeNames));
+  }
+
+  /**
+   * Like subscribe(typeNames), but also selects the columns of each type
+   * that appear in the columnar exports. A null or empty column list
+   * selects all of them.
+   */
+  public void subscribe (Map<String, List<String>> typeFields)
+  {
+    setSubscription(MessageSubscription.of(typeFields));
+  }
+
+  /**
+   * Goes back to buffering every message type, with all columns.
+   */
+  public void subscribeAll ()
+  {
+    setSubscription(MessageSubscription.ALL);
+  }
+
+  /**
+   * Returns the names of the subscribed message types.
+   */
+  public List<String> getSubscribedTypes ()
+  {
+    return subscription.getTypeNames();
+  }
+
+  private void setSubscription (MessageSubscription newSubscription)
+  {
+    subscription = newSubscription;
+    log.info("Subscribed to {}", newSubscription.getTypeNames());
+    for (MessageStore store : stores())
+      store.setSubscription(newSubscription);
+  }
+
+  /**
+   * Caps the number of buffered messages of the named type, in each
+   * service. When the cap is reached, policy says what happens to the next
+   * message: "DROP_OLDEST", "COALESCE_LATEST" or "BLOCK" (see
+   * MessageStore.Overflow). A capacity of zero or less removes the cap.
+   */
+  public void setBufferLimit (String typeName, int capacity, String policy)
+  {
+    MessageType type = MessageType.forName(typeName);
+    if (null == type) {
+      log.error("Unknown message type {}", typeName);
+      return;
+    }
+    MessageStore.Overflow overflow;
+    try {
+      overflow = MessageStore.Overflow.valueOf(policy);
+    } catch (IllegalArgumentException iae) {
+      log.error("Unknown overflow policy {}", policy);
+      return;
+    }
+    if (capacity > 0)
+      bufferLimits.put(type, new MessageStore.Limit(capacity, overflow));
+    else
+      bufferLimits.remove(type);
+    for (MessageStore store : stores())
+      store.setLimit(type, capacity, overflow);
+  }
+
+  /**
+   * Longest time, in msec, a message handler waits for Python to drain a
+   * full buffer with the BLOCK policy, before dropping the oldest message.
+   */
+  public void setBlockTimeout (long msec)
+  {
+    blockTimeout = msec;
+    for (MessageStore store : stores())
+      store.setBlockTimeout(msec);
+  }
+
+  /**
+   * Returns, by type name, the number of messages dropped so far because a
+   * buffer was full. Types with no drops are omitted.
+   */
+  public Map<String, Long> getDroppedCounts ()
+  {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (MessageType type : MessageType.values()) {
+      long count = 0l;
+      for (MessageStore store : stores())
+        count += store.getDropped(type);
+      if (count > 0l)
+        result.put(type.name(), count);
+    }
+    return result;
+  }
+
+  /**
+   * Returns, by type name, the number of messages replaced so far by a later
+   * one under the COALESCE_LATEST policy. Types with none are omitted.
+   */
+  public Map<String, Long> getCoalescedCounts ()
+  {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (MessageType type : MessageType.values()) {
+      long count = 0l;
+      for (MessageStore store : stores())
+        count += store.getCoalesced(type);
+      if (count > 0l)
+        result.put(type.name(), count);
+    }
+    return result;
+  }
+
+  /**
+   * Returns, by type name, the number of messages waiting to be drained,
+   * which shows how far behind Python is. Empty types are omitted.
+   */
+  public Map<String, Integer> getBufferedCounts ()
+  {
+    Map<String, Integer> result = new LinkedHashMap<>();
+    for (MessageType type : MessageType.values()) {
+      int count = 0;
+      for (MessageStore store : stores())
+        count += store.size(type);
+      if (count > 0)
+        result.put(type.name(), count);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a cursor positioned after every message received so far. Pass
+   * it to pollMessages() to see only what arrives from now on.
+   */
+  public long getMessageCursor ()
+  {
+    return MessageStore.getSequence();
+  }
+
+  /**
+   * Returns the messages that arrived in any service after the given
+   * cursor, while the timeslot is still in progress, along with the cursor
+   * for the next call. Polling does not remove anything: the per-timeslot
+   * drains and snapshots still return all of the timeslot's messages, and
+   * messages already drained are not returned here. A cursor of 0 returns
+   * everything currently buffered.
+   */
+  public MessagePoll pollMessages (long cursor)
+  {
+    long upTo = MessageStore.getSequence();
+    Map<String, List<Object>> result = new LinkedHashMap<>();
+    for (MessageStore store : stores())
+      result.putAll(store.poll(cursor, upTo));
+    return new MessagePoll(upTo, result, subscription);
+  }
+
+  /**
+   * Keeps the given number of timeslots of the named message type, for
+   * getHistory() and getHistoryColumns(). Market messages are filed under
+   * their target timeslot, so for those the depth should cover the trading
+   * horizon as well. Zero turns history off for the type.
+   */
+  public void setHistoryDepth (String typeName, int timeslots)
+  {
+    MessageType type = MessageType.forName(typeName);
+    if (null == type) {
+      log.error("Unknown message type {}", typeName);
+      return;
+    }
+    history.setDepth(type, timeslots);
+  }
+
+  /**
+   * Returns the kept messages of the named type for timeslots first through
+   * last inclusive.
+   */
+  public List<Object> getHistory (String typeName, int first, int last)
+  {
+    MessageType type = MessageType.forName(typeName);
+    if (null == type) {
+      log.error("Unknown message type {}", typeName);
+      return new ArrayList<>();
+    }
+    return history.query(type, first, last);
+  }
+
+  /**
+   * Like getHistory(), but packed in MessageColumns format; null if the type
+   * has no columnar layout.
+   */
+  public byte[] getHistoryColumns (String typeName, int first, int last)
+  {
+    MessageType type = MessageType.forName(typeName);
+    if (null == type) {
+      log.error("Unknown message type {}", typeName);
+      return null;
+    }
+    return history.queryColumns(type, first, last);
+  }
+
+  // Message stores of the registered services
+  private List<MessageStore> stores ()
+  {
+    List<MessageStore> result = new ArrayList<>();
+    for (String name : REQUIRED_SERVICES) {
+      MessageStore store = storeOf(findService(name));
+      if (null != store)
+        result.add(store);
     }
-    Object result = services.get(classname);
-    log.info("returning {}", result.getClass().getCanonicalName());
     return result;
   }
 
+  // Installs the current subscription and buffer limits in a service's
+  // message store
+  private void configureStore (Object service)
+  {
+    MessageStore store = storeOf(service);
+    if (null == store)
+      return;
+    store.setSubscription(subscription);
+    store.setHistory(history);
+    store.setBlockTimeout(blockTimeout);
+    for (MessageType type : MessageType.values()) {
+      MessageStore.Limit limit = bufferLimits.get(type);
+      if (null == limit)
+        store.setLimit(type, 0, MessageStore.Overflow.DROP_OLDEST);
+      else
+        store.setLimit(type, limit.capacity, limit.policy);
+    }
+  }
+
+  private MessageStore storeOf (Object service)
+  {
+    MessageStore store = null;
+    if (service instanceof ContextManagerService)
+      store = ((ContextManagerService) service).getMessageStore();
+    else if (service instanceof PortfolioManagerService)
+      store = ((PortfolioManagerService) service).getMessageStore();
+    else if (service instanceof MarketManagerService)
+      store = ((MarketManagerService) service).getMessageStore();
+    return store;
+  }
+
+  /**
+   * Waits up to timeout msec for all the required services to register.
+   * Returns true if they are ready.
+   */
+  public boolean waitForServices (long timeout)
+  {
+    try {
+      servicesReady.get(timeout, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException te) {
+      return false;
+    } catch (InterruptedException e) {
+      log.error("Interrupted waiting for services");
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      log.error("Service registration failed: {}", e.getCause());
+      return false;
+    }
+  }
+
+  /**
+   * Returns the time in msec from startSession() until all required
+   * services had registered, or -1 if they are not all registered yet.
+   */
+  public long getStartupMillis ()
+  {
+    return startupMillis;
+  }
+
+  // Returns the future for the named service, creating it if needed
+  private CompletableFuture<Object> serviceFuture (String name)
+  {
+    return services.computeIfAbsent(name, key -> new CompletableFuture<>());
+  }
+
+  // Returns the named service if it has registered, otherwise null
+  Object findService (String name)
+  {
+    CompletableFuture<Object> future = services.get(name);
+    return (null == future) ? null : future.getNow(null);
+  }
+
+  private void reportStartup ()
+  {
+    if (sessionStart > 0l) {
+      startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sessionStart);
+      log.info("Services ready {} msec after startSession", startupMillis);
+    }
+    else {
+      log.info("Services ready");
+    }
+  }
+
+  /**
+   * Opens a memory-mapped ring buffer at the given path, with a data region
+   * of the given size in bytes. Once it is open, each timeslot's columnar
+   * messages from all three services are written to the buffer as a single
+   * frame when TimeslotComplete arrives, before waitForTimeslotComplete()
+   * returns. Message types without a columnar layout are still retrieved
+   * through the services. Returns the current frame sequence number.
+   */
+  public synchronized long openSharedTransport (String path, int capacity)
+      throws IOException
+  {
+    closeSharedTransport();
+    transport = new SharedRingBuffer(Paths.get(path), capacity);
+    return transport.getSequence();
+  }
+
+  /**
+   * Closes the shared transport, if any. Bulk data goes back to the
+   * per-service Py4J calls.
+   */
+  public synchronized void closeSharedTransport () throws IOException
+  {
+    if (null != transport) {
+      transport.close();
+      transport = null;
+    }
+  }
+
+  /**
+   * Returns true if the shared transport is open
+   */
+  public synchronized boolean isSharedTransportOpen ()
+  {
+    return null != transport;
+  }
+
+  /**
+   * Called by the ContextManager when it is initialized for a new game, so
+   * the history does not carry the last game's messages into this one.
+   */
+  void newGame ()
+  {
+    history.clear();
+    history.setCurrentTimeslot(0);
+  }
+
+  /**
+   * Called by the ContextManager on TimeslotComplete, before Python is
+   * released from waitForTimeslotComplete().
+   */
+  void timeslotComplete (int timeslot)
+  {
+    // whatever arrives from now on belongs to the next timeslot
+    history.setCurrentTimeslot(timeslot + 1);
+    publishTimeslot(timeslot);
+    captureSnapshot(timeslot, false);
+  }
+
+  /**
+   * Called by the ContextManager on SimEnd, to release Python from
+   * waitForTimeslotSnapshot().
+   */
+  void simEnd (int timeslot)
+  {
+    captureSnapshot(timeslot, true);
+  }
+
+  // If the shared transport is open, drains the columnar messages from all
+  // services into a single frame.
+  private synchronized void publishTimeslot (int timeslot)
+  {
+    if (null == transport)
+      return;
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    ContextManagerService context =
+        (ContextManagerService) findService("ContextManager");
+    if (null != context)
+      entries.putAll(context.getContextColumns());
+    PortfolioManagerService portfolio =
+        (PortfolioManagerService) findService("PortfolioManager");
+    if (null != portfolio)
+      entries.putAll(portfolio.getPendingMessageColumns());
+    MarketManagerService market =
+        (MarketManagerService) findService("MarketManager");
+    if (null != market)
+      entries.putAll(market.getPendingMessageColumns());
+    long seq = transport.publish(timeslot, entries);
+    log.info("Published timeslot {} as frame {}, {} types", timeslot, seq, entries.size());
+  }
+
+  /**
+   * Blocks until a timeslot later than lastTimeslotIndex has completed, then
+   * returns a snapshot of all the messages buffered by the context,
+   * portfolio and market services during that timeslot. This replaces
+   * waitForTimeslotComplete() followed by the three separate drains. The
+   * first call turns on snapshot capture; from then on the service buffers
+   * are drained on TimeslotComplete, and the individual drain methods only
+   * see what is not yet part of a snapshot.
+   */
+  public TimeslotSnapshot waitForTimeslotSnapshot (int lastTimeslotIndex)
+  {
+    return waitForTimeslotSnapshot(lastTimeslotIndex, 0l);
+  }
+
+  /**
+   * As waitForTimeslotSnapshot(int), but gives up after timeout msec and
+   * returns null. A timeout of zero waits indefinitely.
+   */
+  public TimeslotSnapshot waitForTimeslotSnapshot (int lastTimeslotIndex,
+                                                   long timeout)
+  {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized(snapshotSync) {
+      snapshotMode = true;
+      while (null == pendingSnapshot
+          || (pendingSnapshot.getTimeslot() <= lastTimeslotIndex
+              && !pendingSnapshot.isEnded())) {
+        long wait = 0l;
+        if (timeout > 0l) {
+          wait = deadline - System.currentTimeMillis();
+          if (wait <= 0l)
+            return null;
+        }
+        try {
+          snapshotSync.wait(wait);
+        } catch (InterruptedException ie) {
+          log.error("Interrupted waiting for timeslot {}", lastTimeslotIndex + 1);
+          return null;
+        }
+      }
+      TimeslotSnapshot result = pendingSnapshot;
+      pendingSnapshot = null;
+      return result;
+    }
+  }
+
+  /**
+   * Turns snapshot capture on or off. It is turned on implicitly by the
+   * first call to waitForTimeslotSnapshot().
+   */
+  public void setSnapshotMode (boolean value)
+  {
+    synchronized(snapshotSync) {
+      snapshotMode = value;
+    }
+  }
+
+  /**
+   * Registers a listener that is called with each timeslot's snapshot as
+   * soon as TimeslotComplete has been handled, instead of Python waiting in
+   * waitForTimeslotSnapshot(). The call is made from a dedicated notifier
+   * thread, so a slow listener does not hold up the broker's message
+   * handling; snapshots that arrive while the listener is busy are
+   * delivered in order when it returns. Registering a listener turns on
+   * snapshot capture.
+   */
+  public void registerTimeslotListener (TimeslotListener newListener)
+  {
+    synchronized(snapshotSync) {
+      if (null == notifier) {
+        notifier = Executors.newSingleThreadExecutor(task -> {
+          Thread thread = new Thread(task, "timeslot-notifier");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+      listener = newListener;
+      snapshotMode = true;
+      log.info("Registered timeslot listener");
+    }
+  }
+
+  /**
+   * Removes the timeslot listener. Snapshots go back to
+   * waitForTimeslotSnapshot().
+   */
+  public void removeTimeslotListener ()
+  {
+    synchronized(snapshotSync) {
+      listener = null;
+    }
+  }
+
+  // Hands a snapshot to the listener on the notifier thread
+  private void notifyListener (TimeslotListener target, TimeslotSnapshot snapshot)
+  {
+    notifier.execute(() -> {
+      try {
+        target.timeslotComplete(snapshot);
+      } catch (RuntimeException re) {
+        log.error("Timeslot listener failed on timeslot {}: {}",
+                  snapshot.getTimeslot(), re.toString());
+      }
+    });
+  }
+
+  // Drains all three services together and makes the result available to
+  // waitForTimeslotSnapshot(). If Python has not collected the previous
+  // snapshot, the two are merged rather than losing messages.
+  private void captureSnapshot (int timeslot, boolean ended)
+  {
+    synchronized(snapshotSync) {
+      if (!snapshotMode)
+        return;
+    }
+    ContextManagerService context =
+        (ContextManagerService) findService("ContextManager");
+    PortfolioManagerService portfolio =
+        (PortfolioManagerService) findService("PortfolioManager");
+    MarketManagerService market =
+        (MarketManagerService) findService("MarketManager");
+    if (null == context || null == portfolio || null == market) {
+      log.warn("Snapshot requested before services are registered");
+      return;
+    }
+    // Each drain swaps its service's buffer atomically. No messages for the
+    // next timeslot arrive until the server starts it, so the three drains
+    // together hold exactly this timeslot's messages.
+    TimeslotSnapshot snapshot =
+        new TimeslotSnapshot(timeslot, ended,
+                             context.getContextMessages(),
+                             portfolio.getPendingMessageLists(),
+                             market.getPendingMessageLists());
+    synchronized(snapshotSync) {
+      if (null != listener) {
+        notifyListener(listener, snapshot);
+        return;
+      }
+      if (null != pendingSnapshot) {
+        log.warn("Snapshot for timeslot {} not collected, merging",
+                 pendingSnapshot.getTimeslot());
+        snapshot = pendingSnapshot.append(snapshot);
+      }
+      pendingSnapshot = snapshot;
+      snapshotSync.notifyAll();
+    }
+  }
+
   /**
    * Starts and runs the agent in a new thread. This will work as long as the cli does not contain repeat-count or
    * repeat-hours options.
    */
   public void startSession (String[] args)
   {
+    sessionStart = System.nanoTime();
     Runner runner = new Runner(args);
     log.info("runner created");
     runner.start();
     log.info("runner started");
   }
 
+  /**
+   * Starts an additional, independent broker session and returns its
+   * handle. Each session gets its own class loader, and therefore its own
+   * Spring context, its own copy of the static state in the broker core,
+   * and its own Envoy with its own service registry. The session's broker
+   * runs in its own thread, exactly as with startSession(). Use
+   * getSession(handle) to reach the session's Envoy; it supports the same
+   * calls as this one.
+   *
+   * Logging is shared between sessions, so give each session a different
+   * username to tell them apart in the logs.
+   */
+  public int createSession (String[] args) throws ReflectiveOperationException
+  {
+    SessionClassLoader loader = new SessionClassLoader(Envoy.class.getClassLoader());
+    Class<?> envoyClass = loader.loadClass(Envoy.class.getName());
+    Object sessionEnvoy = envoyClass.getMethod("getInstance").invoke(null);
+    int handle = nextSessionHandle.getAndIncrement();
+    sessions.put(handle, sessionEnvoy);
+    envoyClass.getMethod("startSession", String[].class)
+        .invoke(sessionEnvoy, (Object) args);
+    log.info("Session {} started", handle);
+    return handle;
+  }
+
+  /**
+   * Returns the Envoy for the session with the given handle, or null if
+   * there is no such session.
+   */
+  public Object getSession (int handle)
+  {
+    return sessions.get(handle);
+  }
+
+  /**
+   * Returns the handles of all sessions created with createSession().
+   */
+  public int[] getSessionHandles ()
+  {
+    return sessions.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+  }
+
+  /**
+   * Forgets the session with the given handle, once Python is done with
+   * it. Returns false if there is no such session.
+   */
+  public boolean removeSession (int handle)
+  {
+    return null != sessions.remove(handle);
+  }
+
   /**
    * Thread wrapper for agent session. Create an instance and call start, which returns while
    * the thread runs.
@@ -111,7 +787,11 @@ public class Envoy
     String[] clArgs;
     Runner (String[] args)
     {
+      super("broker-session");
       clArgs = args;
+      // Spring loads the broker classes through the context class loader,
+      // which must be the session's own loader
+      setContextClassLoader(Envoy.class.getClassLoader());
     }
     
     public void run ()
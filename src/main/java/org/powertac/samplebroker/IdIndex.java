@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense int slots, 0, 1, 2, ..., to long ids in the order they are
+ * first seen, so that per-customer and per-tariff data can live in arrays.
+ * The id-to-slot map is an open-addressing table of primitives, so lookups
+ * neither box nor allocate. Slots are never reused.
+ *
+ * Not thread-safe.
+ *
+ * @author John Collins
+ */
+public class IdIndex
+{
+  private static final int EMPTY = -1;
+
+  private long[] keys;
+  private int[] values; // slot for keys[i], or EMPTY
+  private long[] ids;   // id for each slot
+  private int size = 0;
+
+  public IdIndex ()
+  {
+    super();
+    keys = new long[64];
+    values = new int[64];
+    Arrays.fill(values, EMPTY);
+    ids = new long[32];
+  }
+
+  /**
+   * Number of slots assigned.
+   */
+  public int size ()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the slot of the given id, or -1 if it has none.
+   */
+  public int find (long id)
+  {
+    int mask = keys.length - 1;
+    int i = hash(id) & mask;
+    while (values[i] != EMPTY) {
+      if (keys[i] == id)
+        return values[i];
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the slot of the given id, assigning the next one if needed.
+   */
+  public int add (long id)
+  {
+    int mask = keys.length - 1;
+    int i = hash(id) & mask;
+    while (values[i] != EMPTY) {
+      if (keys[i] == id)
+        return values[i];
+      i = (i + 1) & mask;
+    }
+    int slot = size++;
+    keys[i] = id;
+    values[i] = slot;
+    if (slot == ids.length)
+      ids = Arrays.copyOf(ids, slot * 2);
+    ids[slot] = id;
+    if (size * 2 > keys.length)
+      rehash(keys.length * 2);
+    return slot;
+  }
+
+  /**
+   * Returns the id in the given slot.
+   */
+  public long getId (int slot)
+  {
+    return ids[slot];
+  }
+
+  /**
+   * Returns the ids of all the slots, in slot order.
+   */
+  public long[] getIds ()
+  {
+    return Arrays.copyOf(ids, size);
+  }
+
+  private void rehash (int capacity)
+  {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, EMPTY);
+    int mask = capacity - 1;
+    for (int slot = 0; slot < size; slot++) {
+      int i = hash(ids[slot]) & mask;
+      while (values[i] != EMPTY)
+        i = (i + 1) & mask;
+      keys[i] = ids[slot];
+      values[i] = slot;
+    }
+  }
+
+  // spreads the sequential ids the server hands out
+  private static int hash (long id)
+  {
+    long h = id * 0x9E3779B97F4A7C15l;
+    return (int) (h ^ (h >>> 32));
+  }
+}
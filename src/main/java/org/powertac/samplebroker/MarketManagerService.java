@@ -15,11 +15,17 @@
  */
 package org.powertac.samplebroker;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -32,6 +38,7 @@ import org.powertac.common.MarketPosition;
 import org.powertac.common.MarketTransaction;
 import org.powertac.common.Order;
 import org.powertac.common.Orderbook;
+import org.powertac.common.TimeService;
 import org.powertac.common.Timeslot;
 import org.powertac.common.WeatherForecast;
 import org.powertac.common.WeatherReport;
@@ -70,7 +77,18 @@ implements MarketManager, Initializable, Activatable
   @Autowired
   private PortfolioManager portfolioManager;
 
+  @Autowired
+  private TimeService timeService;
+
   // ------------ Configurable parameters --------------
+  @ConfigurableValue(valueType = "Double",
+          description = "Fraction of the timeslot after which fallback orders are sent if none were submitted; 0 disables")
+  private double fallbackCutoff = 0.0;
+
+  @ConfigurableValue(valueType = "Integer",
+          description = "Number of timeslots of orderbook curves to keep")
+  private int orderbookWindow = 24;
+
   // max and min offer prices. Max means "sure to trade"
   //@ConfigurableValue(valueType = "Double",
   //        description = "Upper end (least negative) of bid price range")
@@ -105,8 +123,19 @@ implements MarketManager, Initializable, Activatable
   private double[] marketPrice;
   private double meanMarketPrice = 0.0;
   
-  // Map for recording per-timeslot messages
-  private Map<String, List<Object>> pendingMessages;
+  // Per-timeslot messages for Python
+  private MessageStore messages = new MessageStore();
+
+  // Fallback orders, sent at the cutoff if Python has not submitted
+  private TimeslotDeadline deadline;
+  private ScheduledExecutorService fallbackTimer;
+  private ScheduledFuture<?> pendingFallback;
+  private List<Order> fallbackOrders; // null to repeat the last orders
+  private int submittedTimeslot = -1;
+  private int fallbackCount = 0;
+
+  // Supply and demand curves from recent orderbooks
+  private OrderbookCurves orderbookCurves;
 
   public MarketManagerService ()
   {
@@ -121,7 +150,21 @@ implements MarketManager, Initializable, Activatable
   {
     this.broker = broker;
     lastOrder = new HashMap<>();
+    messages.clear();
+    deadline = new TimeslotDeadline(timeService);
+    if (null == fallbackTimer) {
+      fallbackTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "order-fallback");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    cancelFallback();
+    fallbackOrders = null;
+    submittedTimeslot = -1;
+    fallbackCount = 0;
     propertiesService.configureMe(this);
+    orderbookCurves = new OrderbookCurves(orderbookWindow);
     Envoy envoy = Envoy.getInstance();
     envoy.registerService("MarketManager", this);
   }
@@ -153,7 +196,7 @@ implements MarketManager, Initializable, Activatable
   public synchronized void handleMessage (BalancingTransaction tx)
   {
     log.info("Balancing tx: " + tx.getCharge());
-    addPendingMessage("BalancingTransaction", tx);
+    addPendingMessage(tx);
   }
 
   /**
@@ -162,7 +205,7 @@ implements MarketManager, Initializable, Activatable
    */
   public synchronized void handleMessage (ClearedTrade ct)
   {
-    addPendingMessage("ClearedTrade", ct);
+    addPendingMessage(ct);
   }
 
   /**
@@ -171,7 +214,7 @@ implements MarketManager, Initializable, Activatable
   public synchronized void handleMessage (DistributionTransaction dt)
   {
     log.info("Distribution tx: " + dt.getCharge());
-    addPendingMessage("DistributionTransaction", dt);
+    addPendingMessage(dt);
   }
 
   /**
@@ -181,7 +224,7 @@ implements MarketManager, Initializable, Activatable
   public synchronized void handleMessage (CapacityTransaction ct)
   {
     log.info("Capacity tx: " + ct.getCharge());
-    addPendingMessage("CapacityTransaction", ct);
+    addPendingMessage(ct);
   }
 
   /**
@@ -225,7 +268,7 @@ implements MarketManager, Initializable, Activatable
   public synchronized void handleMessage (MarketPosition posn)
   {
     broker.getBroker().addMarketPosition(posn, posn.getTimeslotIndex());
-    addPendingMessage("MarketPosition", posn);
+    addPendingMessage(posn);
   }
   
   /**
@@ -240,7 +283,7 @@ implements MarketManager, Initializable, Activatable
       log.error("order corresponding to market tx " + tx + " is null");
     else if (tx.getMWh() == lastTry.getMWh()) // fully cleared
       lastOrder.put(tx.getTimeslotIndex(), null);
-    addPendingMessage("MarketTransaction", tx);
+    addPendingMessage(tx);
   }
   
   /**
@@ -250,7 +293,26 @@ implements MarketManager, Initializable, Activatable
    */
   public synchronized void handleMessage (Orderbook orderbook)
   {
-    addPendingMessage("Orderbook", orderbook);
+    addPendingMessage(orderbook);
+    orderbookCurves.add(orderbook, timeslotRepo.currentSerialNumber());
+  }
+
+  /**
+   * Returns the supply and demand curves of recent orderbooks.
+   */
+  public OrderbookCurves getOrderbookCurves ()
+  {
+    return orderbookCurves;
+  }
+
+  /**
+   * Estimates the price at which the given quantity would clear in the
+   * target timeslot, from its latest orderbook: positive mWh to buy,
+   * negative to sell. NaN if there is no orderbook or it is too thin.
+   */
+  public double estimateClearingPrice (int timeslot, double mWh)
+  {
+    return orderbookCurves.estimateClearingPrice(timeslot, mWh);
   }
 
   /**
@@ -259,21 +321,13 @@ implements MarketManager, Initializable, Activatable
    */
   public synchronized void handleMessage (BalanceReport report)
   {
-    addPendingMessage("BalanceReport", report);
+    addPendingMessage(report);
   }
 
   // Adds a message to the correct pendingMessage list
-  private void addPendingMessage (String type, Object msg)
+  private void addPendingMessage (Object msg)
   {
-    if (null == pendingMessages) {
-      pendingMessages = new HashMap<String, List<Object>>();
-    }
-    List<Object> msgs = pendingMessages.get(type);
-    if (null == msgs) {
-      msgs = new ArrayList<Object>();
-      pendingMessages.put(type, msgs);
-    }
-    msgs.add(msg);
+    messages.add(msg);
   }
 
   /**
@@ -281,13 +335,223 @@ implements MarketManager, Initializable, Activatable
    */
   public Map<String, List<Object>> getPendingMessageLists ()
   {
-    // Save result, clean up old messages
-    log.info("getMarketMessages {}", (pendingMessages != null) ? pendingMessages.size(): 0);
-    Map<String, List<Object>> result = pendingMessages;
-    pendingMessages = null;
+    Map<String, List<Object>> result = messages.drain();
+    log.info("getMarketMessages {}", result.size());
     return result;
   }
 
+  // Envoy installs Python's subscription here
+  MessageStore getMessageStore ()
+  {
+    return messages;
+  }
+
+  /**
+   * Retrieves pending messages for the current timeslot in columnar form,
+   * one packed byte[] per message type (see {@link MessageColumns}). Types
+   * that have no columnar layout are left in place for
+   * getPendingMessageLists().
+   */
+  public Map<String, byte[]> getPendingMessageColumns ()
+  {
+    Map<String, byte[]> result =
+        MessageColumns.extract(messages.drain(MessageColumns::hasLayout),
+                               messages.getSubscription());
+    log.info("getMarketColumns {}", result.size());
+    return result;
+  }
+
+  // ---------------- order submission ---------------
+  /**
+   * Builds and sends a batch of wholesale orders described by parallel
+   * arrays. Quantities are in MWh, positive to buy and negative to sell. A
+   * limit price of NaN makes a market order. Orders smaller than the
+   * competition's minimum order quantity are skipped. Returns the number of
+   * orders sent.
+   */
+  public synchronized int submitOrders (int[] timeslots, double[] mWh,
+                                        double[] limitPrices)
+  {
+    if (timeslots.length != mWh.length || timeslots.length != limitPrices.length) {
+      log.error("submitOrders: array lengths {}, {}, {} do not match",
+                timeslots.length, mWh.length, limitPrices.length);
+      return 0;
+    }
+    double minMWh = 0.0;
+    Competition comp = Competition.currentCompetition();
+    if (null != comp)
+      minMWh = comp.getMinimumOrderQuantity();
+    int count = 0;
+    for (int i = 0; i < timeslots.length; i++) {
+      if (Math.abs(mWh[i]) < minMWh) {
+        log.debug("skipping order for {} MWh in timeslot {}", mWh[i], timeslots[i]);
+        continue;
+      }
+      Double limitPrice = Double.isNaN(limitPrices[i]) ? null : limitPrices[i];
+      Order order = new Order(broker.getBroker(), timeslots[i], mWh[i], limitPrice);
+      lastOrder.put(timeslots[i], order);
+      broker.sendMessage(order);
+      count += 1;
+    }
+    submittedTimeslot = timeslotRepo.currentSerialNumber();
+    log.info("submitted {} orders", count);
+    return count;
+  }
+
+  /**
+   * Packed form of submitOrders(int[], double[], double[]), so Python can
+   * hand over a whole batch as a single bytes object. The layout is
+   * little-endian: int32 count, then count int32 timeslots, count float64
+   * quantities and count float64 limit prices.
+   */
+  public int submitOrders (byte[] packed)
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    int count = buffer.getInt();
+    if (packed.length != 4 + count * 20) {
+      log.error("submitOrders: {} bytes do not hold {} orders", packed.length, count);
+      return 0;
+    }
+    int[] timeslots = new int[count];
+    double[] mWh = new double[count];
+    double[] limitPrices = new double[count];
+    buffer.asIntBuffer().get(timeslots);
+    buffer.position(4 + count * 4);
+    buffer.asDoubleBuffer().get(mWh);
+    buffer.position(4 + count * 12);
+    buffer.asDoubleBuffer().get(limitPrices);
+    return submitOrders(timeslots, mWh, limitPrices);
+  }
+
+  // ---------------- deadline and fallback ---------------
+
+  /**
+   * Notes an order that Python sent through the ContextManager, so the
+   * fallback is not sent on top of it.
+   */
+  @Override
+  public synchronized void recordOrder (Order order)
+  {
+    lastOrder.put(order.getTimeslotIndex(), order);
+    submittedTimeslot = timeslotRepo.currentSerialNumber();
+  }
+  /**
+   * Wall-clock msec left before the current timeslot ends and the market
+   * clears, or -1 if the clock is not running.
+   */
+  public long getRemainingMillis ()
+  {
+    return deadline.getRemainingMillis();
+  }
+
+  /**
+   * Wall-clock length of a timeslot in msec, or -1 if not yet known.
+   */
+  public long getTimeslotMillis ()
+  {
+    return deadline.getTimeslotMillis();
+  }
+
+  public double getFallbackCutoff ()
+  {
+    return fallbackCutoff;
+  }
+
+  /**
+   * Sets the fraction of each timeslot after which, if no orders have been
+   * submitted in that timeslot, the fallback orders are sent. Zero disables
+   * the fallback. Takes effect at the next timeslot.
+   */
+  public synchronized void setFallbackCutoff (double cutoff)
+  {
+    fallbackCutoff = cutoff;
+  }
+
+  /**
+   * Replaces the fallback order set, described as in submitOrders(). Orders
+   * for timeslots that are no longer enabled when the fallback fires are
+   * skipped.
+   */
+  public synchronized void setFallbackOrders (int[] timeslots, double[] mWh,
+                                              double[] limitPrices)
+  {
+    if (timeslots.length != mWh.length || timeslots.length != limitPrices.length) {
+      log.error("setFallbackOrders: array lengths {}, {}, {} do not match",
+                timeslots.length, mWh.length, limitPrices.length);
+      return;
+    }
+    fallbackOrders = new ArrayList<>();
+    for (int i = 0; i < timeslots.length; i++) {
+      Double limitPrice = Double.isNaN(limitPrices[i]) ? null : limitPrices[i];
+      fallbackOrders.add(new Order(broker.getBroker(), timeslots[i], mWh[i], limitPrice));
+    }
+  }
+
+  /**
+   * Goes back to the default fallback, which repeats the most recent order
+   * for each timeslot that is still open.
+   */
+  public synchronized void clearFallbackOrders ()
+  {
+    fallbackOrders = null;
+  }
+
+  /**
+   * Number of timeslots in which the fallback orders were sent.
+   */
+  public synchronized int getFallbackCount ()
+  {
+    return fallbackCount;
+  }
+
+  // Arms the fallback for the current timeslot
+  private void scheduleFallback ()
+  {
+    cancelFallback();
+    if (fallbackCutoff <= 0.0)
+      return;
+    long delay = deadline.getMillisUntil(fallbackCutoff);
+    if (delay < 0l)
+      return;
+    int timeslot = timeslotRepo.currentSerialNumber();
+    pendingFallback =
+        fallbackTimer.schedule(() -> sendFallback(timeslot), delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelFallback ()
+  {
+    if (null != pendingFallback) {
+      pendingFallback.cancel(false);
+      pendingFallback = null;
+    }
+  }
+
+  // Sends the fallback orders, unless Python submitted in this timeslot or
+  // the timeslot is already over
+  synchronized void sendFallback (int timeslot)
+  {
+    if (timeslotRepo.currentSerialNumber() != timeslot
+        || submittedTimeslot == timeslot)
+      return;
+    List<Order> source =
+        (null != fallbackOrders) ? fallbackOrders : new ArrayList<>(lastOrder.values());
+    int count = 0;
+    for (Order order : source) {
+      // fully cleared orders leave a null in lastOrder
+      if (null == order || !timeslotRepo.isTimeslotEnabled(order.getTimeslotIndex()))
+        continue;
+      Order copy = new Order(broker.getBroker(), order.getTimeslotIndex(),
+                             order.getMWh(), order.getLimitPrice());
+      lastOrder.put(copy.getTimeslotIndex(), copy);
+      broker.sendMessage(copy);
+      count += 1;
+    }
+    submittedTimeslot = timeslot;
+    fallbackCount += 1;
+    log.warn("No orders by the cutoff in timeslot {}, sent {} fallback orders",
+             timeslot, count);
+  }
+
   // ----------- per-timeslot activation ---------------
 
   /**
@@ -298,6 +562,7 @@ implements MarketManager, Initializable, Activatable
   @Override
   public synchronized void activate (int timeslotIndex)
   {
+    scheduleFallback();
     //double neededKWh = 0.0;
     //log.debug("Current timeslot is " + timeslotRepo.currentTimeslot().getSerialNumber());
     //for (Timeslot timeslot : timeslotRepo.enabledTimeslots()) {
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import org.powertac.common.BalancingTransaction;
+import org.powertac.common.BankTransaction;
+import org.powertac.common.CapacityTransaction;
+import org.powertac.common.CashPosition;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.DistributionTransaction;
+import org.powertac.common.MarketPosition;
+import org.powertac.common.MarketTransaction;
+import org.powertac.common.Orderbook;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherForecastPrediction;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.msg.BalanceReport;
+import org.powertac.common.msg.DistributionReport;
+import org.powertac.common.msg.TariffRevoke;
+import org.powertac.common.msg.TariffStatus;
+
+/**
+ * Flattens lists of messages into columnar primitive arrays, packed into a
+ * single byte[] per message type, so the Python side can pick up a whole
+ * timeslot's worth of messages of one type in a single gateway call.
+ *
+ * The packed format is little-endian:
+ * <pre>
+ *   int32 rowCount
+ *   int32 columnCount
+ *   for each column:
+ *     int16 nameLength, UTF-8 name bytes
+ *     int8  kind ('i' = int32, 'l' = int64, 'd' = float64)
+ *     rowCount values of the given kind
+ * </pre>
+ * Object-valued fields are represented by their ids; enum-valued fields by
+ * their ordinals. Missing Double values are encoded as NaN.
+ *
+ * @author John Collins
+ */
+public final class MessageColumns
+{
+  public static final byte INT = 'i';
+  public static final byte LONG = 'l';
+  public static final byte DOUBLE = 'd';
+
+  private static final Map<String, Layout<?, ?>> layouts = new HashMap<>();
+
+  static {
+    layout("TariffTransaction", TariffTransaction.class)
+        .longColumn("id", TariffTransaction::getId)
+        .intColumn("postedTimeslot", TariffTransaction::getPostedTimeslotIndex)
+        .intColumn("txType", tt -> tt.getTxType().ordinal())
+        .longColumn("tariffId",
+                    tt -> null == tt.getTariffSpec() ? -1l : tt.getTariffSpec().getId())
+        .longColumn("customerId",
+                    tt -> null == tt.getCustomerInfo() ? -1l : tt.getCustomerInfo().getId())
+        .intColumn("customerCount", TariffTransaction::getCustomerCount)
+        .doubleColumn("kWh", TariffTransaction::getKWh)
+        .doubleColumn("charge", TariffTransaction::getCharge)
+        .intColumn("regulation", tt -> tt.isRegulation() ? 1 : 0);
+    layout("TariffSpecification", TariffSpecification.class)
+        .longColumn("id", TariffSpecification::getId)
+        .longColumn("minDuration", TariffSpecification::getMinDuration)
+        .doubleColumn("signupPayment", TariffSpecification::getSignupPayment)
+        .doubleColumn("earlyWithdrawPayment", TariffSpecification::getEarlyWithdrawPayment)
+        .doubleColumn("periodicPayment", TariffSpecification::getPeriodicPayment)
+        .intColumn("rateCount", spec -> spec.getRates().size());
+    layout("TariffStatus", TariffStatus.class)
+        .longColumn("id", TariffStatus::getId)
+        .longColumn("tariffId", TariffStatus::getTariffId)
+        .longColumn("updateId", TariffStatus::getUpdateId)
+        .intColumn("status", ts -> ts.getStatus().ordinal());
+    layout("TariffRevoke", TariffRevoke.class)
+        .longColumn("id", TariffRevoke::getId)
+        .longColumn("tariffId", TariffRevoke::getTariffId);
+    layout("BalancingTransaction", BalancingTransaction.class)
+        .longColumn("id", BalancingTransaction::getId)
+        .intColumn("postedTimeslot", BalancingTransaction::getPostedTimeslotIndex)
+        .doubleColumn("kWh", BalancingTransaction::getKWh)
+        .doubleColumn("charge", BalancingTransaction::getCharge);
+    layout("DistributionTransaction", DistributionTransaction.class)
+        .longColumn("id", DistributionTransaction::getId)
+        .intColumn("postedTimeslot", DistributionTransaction::getPostedTimeslotIndex)
+        .intColumn("nSmall", DistributionTransaction::getNSmall)
+        .intColumn("nLarge", DistributionTransaction::getNLarge)
+        .doubleColumn("kWh", DistributionTransaction::getKWh)
+        .doubleColumn("charge", DistributionTransaction::getCharge);
+    layout("CapacityTransaction", CapacityTransaction.class)
+        .longColumn("id", CapacityTransaction::getId)
+        .intColumn("postedTimeslot", CapacityTransaction::getPostedTimeslotIndex)
+        .intColumn("peakTimeslot", CapacityTransaction::getPeakTimeslot)
+        .doubleColumn("threshold", CapacityTransaction::getThreshold)
+        .doubleColumn("kWh", CapacityTransaction::getKWh)
+        .doubleColumn("charge", CapacityTransaction::getCharge);
+    layout("ClearedTrade", ClearedTrade.class)
+        .longColumn("id", ClearedTrade::getId)
+        .intColumn("timeslot", ClearedTrade::getTimeslotIndex)
+        .doubleColumn("executionMWh", ClearedTrade::getExecutionMWh)
+        .doubleColumn("executionPrice", ClearedTrade::getExecutionPrice);
+    layout("MarketPosition", MarketPosition.class)
+        .longColumn("id", MarketPosition::getId)
+        .intColumn("timeslot", MarketPosition::getTimeslotIndex)
+        .doubleColumn("overallBalance", MarketPosition::getOverallBalance);
+    layout("MarketTransaction", MarketTransaction.class)
+        .longColumn("id", MarketTransaction::getId)
+        .intColumn("postedTimeslot", MarketTransaction::getPostedTimeslotIndex)
+        .intColumn("timeslot", MarketTransaction::getTimeslotIndex)
+        .doubleColumn("mWh", MarketTransaction::getMWh)
+        .doubleColumn("price", MarketTransaction::getPrice);
+    layout("Orderbook", Orderbook.class)
+        .longColumn("id", Orderbook::getId)
+        .intColumn("timeslot", Orderbook::getTimeslotIndex)
+        .doubleColumn("clearingPrice", ob -> valueOf(ob.getClearingPrice()))
+        .intColumn("bidCount", ob -> ob.getBids().size())
+        .intColumn("askCount", ob -> ob.getAsks().size());
+    layout("BalanceReport", BalanceReport.class)
+        .longColumn("id", BalanceReport::getId)
+        .intColumn("timeslot", BalanceReport::getTimeslotIndex)
+        .doubleColumn("netImbalance", BalanceReport::getNetImbalance);
+    layout("BankTransaction", BankTransaction.class)
+        .longColumn("id", BankTransaction::getId)
+        .intColumn("postedTimeslot", BankTransaction::getPostedTimeslotIndex)
+        .doubleColumn("amount", BankTransaction::getAmount);
+    layout("CashPosition", CashPosition.class)
+        .longColumn("id", CashPosition::getId)
+        .intColumn("postedTimeslot", CashPosition::getPostedTimeslotIndex)
+        .doubleColumn("balance", CashPosition::getBalance);
+    layout("DistributionReport", DistributionReport.class)
+        .longColumn("id", DistributionReport::getId)
+        .intColumn("timeslot", DistributionReport::getTimeslot)
+        .doubleColumn("totalConsumption", DistributionReport::getTotalConsumption)
+        .doubleColumn("totalProduction", DistributionReport::getTotalProduction);
+    layout("WeatherReport", WeatherReport.class)
+        .longColumn("id", WeatherReport::getId)
+        .intColumn("timeslot", WeatherReport::getTimeslotIndex)
+        .doubleColumn("temperature", WeatherReport::getTemperature)
+        .doubleColumn("windSpeed", WeatherReport::getWindSpeed)
+        .doubleColumn("windDirection", WeatherReport::getWindDirection)
+        .doubleColumn("cloudCover", WeatherReport::getCloudCover);
+    // one row per prediction, tagged with the timeslot of the forecast
+    layout("WeatherForecast", WeatherForecast.class, ForecastRow::expand)
+        .longColumn("id", row -> row.forecast.getId())
+        .intColumn("timeslot", row -> row.forecast.getTimeslotIndex())
+        .intColumn("forecastTime", row -> row.prediction.getForecastTime())
+        .doubleColumn("temperature", row -> row.prediction.getTemperature())
+        .doubleColumn("windSpeed", row -> row.prediction.getWindSpeed())
+        .doubleColumn("windDirection", row -> row.prediction.getWindDirection())
+        .doubleColumn("cloudCover", row -> row.prediction.getCloudCover());
+  }
+
+  private MessageColumns ()
+  {
+    super();
+  }
+
+  /**
+   * Returns true if the given message type can be exported in columnar form.
+   */
+  public static boolean hasLayout (String type)
+  {
+    return layouts.containsKey(type);
+  }
+
+  /**
+   * Returns true if messages of the given type can be exported in columnar
+   * form.
+   */
+  public static boolean hasLayout (MessageType type)
+  {
+    return hasLayout(type.name());
+  }
+
+  /**
+   * Returns the column names for the given message type, in the order they
+   * appear in the packed output, or an empty list if the type has no layout.
+   */
+  public static List<String> getColumnNames (String type)
+  {
+    Layout<?, ?> layout = layouts.get(type);
+    if (null == layout)
+      return Collections.emptyList();
+    List<String> result = new ArrayList<>();
+    for (Column<?> column : layout.columns)
+      result.add(column.name);
+    return result;
+  }
+
+  /**
+   * Packs a list of messages of the given type. Returns null if the type
+   * has no columnar layout.
+   */
+  public static byte[] encode (String type, List<Object> msgs)
+  {
+    return encode(type, msgs, null);
+  }
+
+  /**
+   * Packs a list of messages of the given type, including only the named
+   * columns, or all of them if fields is null. Returns null if the type has
+   * no columnar layout.
+   */
+  public static byte[] encode (String type, List<Object> msgs,
+                               Collection<String> fields)
+  {
+    Layout<?, ?> layout = layouts.get(type);
+    if (null == layout)
+      return null;
+    return layout.encode(msgs, fields);
+  }
+
+  /**
+   * Removes from the given message map all the types that have a columnar
+   * layout, and returns them in packed form. Types without a layout are left
+   * in the map, so they can still be retrieved as objects.
+   */
+  public static Map<String, byte[]> extract (Map<String, List<Object>> msgs)
+  {
+    return extract(msgs, MessageSubscription.ALL);
+  }
+
+  /**
+   * Like extract(msgs), but packs only the columns each type's subscription
+   * selects.
+   */
+  public static Map<String, byte[]> extract (Map<String, List<Object>> msgs,
+                                             MessageSubscription subscription)
+  {
+    Map<String, byte[]> result = new LinkedHashMap<>();
+    if (null == msgs)
+      return result;
+    Iterator<Map.Entry<String, List<Object>>> entries = msgs.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, List<Object>> entry = entries.next();
+      MessageType type = MessageType.forName(entry.getKey());
+      Collection<String> fields =
+          (null == type) ? null : subscription.getFields(type);
+      byte[] packed = encode(entry.getKey(), entry.getValue(), fields);
+      if (null != packed) {
+        result.put(entry.getKey(), packed);
+        entries.remove();
+      }
+    }
+    return result;
+  }
+
+  // Null-safe unboxing
+  static double valueOf (Double value)
+  {
+    return null == value ? Double.NaN : value;
+  }
+
+  private static <M> Layout<M, M> layout (String type, Class<M> clazz)
+  {
+    return layout(type, clazz, Collections::singletonList);
+  }
+
+  private static <M, R> Layout<M, R> layout (String type, Class<M> clazz,
+                                             Function<M, List<R>> rows)
+  {
+    Layout<M, R> result = new Layout<>(clazz, rows);
+    layouts.put(type, result);
+    return result;
+  }
+
+  // ------------- layout description -------------
+  /**
+   * Column layout for a single message type. Each message of type M expands
+   * to one or more rows of type R.
+   */
+  static class Layout<M, R>
+  {
+    private final Class<M> clazz;
+    private final Function<M, List<R>> rows;
+    private final List<Column<R>> columns = new ArrayList<>();
+
+    Layout (Class<M> clazz, Function<M, List<R>> rows)
+    {
+      super();
+      this.clazz = clazz;
+      this.rows = rows;
+    }
+
+    Layout<M, R> intColumn (String name, ToIntFunction<R> getter)
+    {
+      columns.add(new Column<R>(name, INT)
+      {
+        @Override
+        void put (ByteBuffer buffer, R row)
+        {
+          buffer.putInt(getter.applyAsInt(row));
+        }
+      });
+      return this;
+    }
+
+    Layout<M, R> longColumn (String name, ToLongFunction<R> getter)
+    {
+      columns.add(new Column<R>(name, LONG)
+      {
+        @Override
+        void put (ByteBuffer buffer, R row)
+        {
+          buffer.putLong(getter.applyAsLong(row));
+        }
+      });
+      return this;
+    }
+
+    Layout<M, R> doubleColumn (String name, ToDoubleFunction<R> getter)
+    {
+      columns.add(new Column<R>(name, DOUBLE)
+      {
+        @Override
+        void put (ByteBuffer buffer, R row)
+        {
+          buffer.putDouble(getter.applyAsDouble(row));
+        }
+      });
+      return this;
+    }
+
+    byte[] encode (List<?> msgs, Collection<String> fields)
+    {
+      List<R> table = new ArrayList<>(msgs.size());
+      for (Object msg : msgs)
+        table.addAll(rows.apply(clazz.cast(msg)));
+      List<Column<R>> selected = columns;
+      if (null != fields) {
+        selected = new ArrayList<>();
+        for (Column<R> column : columns) {
+          if (fields.contains(column.name))
+            selected.add(column);
+        }
+      }
+      int size = 8;
+      for (Column<R> column : selected)
+        size += column.size(table.size());
+      ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(table.size());
+      buffer.putInt(selected.size());
+      for (Column<R> column : selected) {
+        buffer.putShort((short) column.label.length);
+        buffer.put(column.label);
+        buffer.put(column.kind);
+        for (R row : table)
+          column.put(buffer, row);
+      }
+      return buffer.array();
+    }
+  }
+
+  /**
+   * A single named column of primitive values.
+   */
+  abstract static class Column<R>
+  {
+    final String name;
+    final byte[] label;
+    final byte kind;
+
+    Column (String name, byte kind)
+    {
+      super();
+      this.name = name;
+      this.label = name.getBytes(StandardCharsets.UTF_8);
+      this.kind = kind;
+    }
+
+    int size (int rowCount)
+    {
+      int width = (kind == INT) ? 4 : 8;
+      return 2 + label.length + 1 + rowCount * width;
+    }
+
+    abstract void put (ByteBuffer buffer, R row);
+  }
+
+  // WeatherForecast messages carry a list of predictions
+  static class ForecastRow
+  {
+    final WeatherForecast forecast;
+    final WeatherForecastPrediction prediction;
+
+    ForecastRow (WeatherForecast forecast, WeatherForecastPrediction prediction)
+    {
+      super();
+      this.forecast = forecast;
+      this.prediction = prediction;
+    }
+
+    static List<ForecastRow> expand (WeatherForecast forecast)
+    {
+      List<ForecastRow> result = new ArrayList<>();
+      for (WeatherForecastPrediction prediction : forecast.getPredictions())
+        result.add(new ForecastRow(forecast, prediction));
+      return result;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+import org.powertac.common.BrokerTransaction;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.MarketPosition;
+import org.powertac.common.MarketTransaction;
+import org.powertac.common.Orderbook;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.msg.BalanceReport;
+import org.powertac.common.msg.DistributionReport;
+
+/**
+ * Keeps the messages of selected types for the last few timeslots, so Python
+ * can ask for ranges of them after they have been drained. Each type has a
+ * ring of per-timeslot buckets, indexed by the timeslot the message is about:
+ * the target timeslot for market messages, the posted timeslot for broker
+ * transactions, and for types that carry no timeslot, the one in which the
+ * message arrived. Since market messages refer to timeslots up to a day
+ * ahead, the depth should allow for that.
+ *
+ * Recording is off for a type until setDepth() gives it a depth.
+ *
+ * @author John Collins
+ */
+public class MessageHistory
+{
+  private static final Map<MessageType, ToIntFunction<Object>> keys =
+      new EnumMap<>(MessageType.class);
+
+  static {
+    key(MessageType.ClearedTrade, ClearedTrade.class, ClearedTrade::getTimeslotIndex);
+    key(MessageType.Orderbook, Orderbook.class, Orderbook::getTimeslotIndex);
+    key(MessageType.MarketPosition, MarketPosition.class,
+        MarketPosition::getTimeslotIndex);
+    key(MessageType.MarketTransaction, MarketTransaction.class,
+        MarketTransaction::getTimeslotIndex);
+    key(MessageType.WeatherReport, WeatherReport.class,
+        WeatherReport::getTimeslotIndex);
+    key(MessageType.WeatherForecast, WeatherForecast.class,
+        WeatherForecast::getTimeslotIndex);
+    key(MessageType.BalanceReport, BalanceReport.class,
+        BalanceReport::getTimeslotIndex);
+    key(MessageType.DistributionReport, DistributionReport.class,
+        DistributionReport::getTimeslot);
+    for (MessageType type : MessageType.values()) {
+      if (!keys.containsKey(type)
+          && BrokerTransaction.class.isAssignableFrom(type.getMessageClass()))
+        key(type, BrokerTransaction.class, BrokerTransaction::getPostedTimeslotIndex);
+    }
+  }
+
+  private final Ring[] rings = new Ring[MessageType.count()];
+  private volatile int currentTimeslot = 0;
+
+  public MessageHistory ()
+  {
+    super();
+  }
+
+  /**
+   * Keeps the given number of timeslots of the given type. Zero or less
+   * stops recording the type and discards what it holds.
+   */
+  public synchronized void setDepth (MessageType type, int timeslots)
+  {
+    rings[type.ordinal()] = (timeslots > 0) ? new Ring(timeslots) : null;
+  }
+
+  public synchronized int getDepth (MessageType type)
+  {
+    Ring ring = rings[type.ordinal()];
+    return (null == ring) ? 0 : ring.depth;
+  }
+
+  /**
+   * Sets the timeslot assigned to arriving messages that carry none.
+   */
+  public void setCurrentTimeslot (int timeslot)
+  {
+    currentTimeslot = timeslot;
+  }
+
+  /**
+   * Records a message, if its type is being kept.
+   */
+  public void record (MessageType type, Object msg)
+  {
+    Ring ring;
+    synchronized(this) {
+      ring = rings[type.ordinal()];
+    }
+    if (null == ring)
+      return;
+    ring.add(timeslotOf(type, msg), msg);
+  }
+
+  /**
+   * Returns the recorded messages of the given type for timeslots first
+   * through last inclusive, in timeslot order. Timeslots no longer held are
+   * skipped.
+   */
+  public List<Object> query (MessageType type, int first, int last)
+  {
+    Ring ring;
+    synchronized(this) {
+      ring = rings[type.ordinal()];
+    }
+    if (null == ring)
+      return new ArrayList<>();
+    return ring.range(first, last);
+  }
+
+  /**
+   * Like query(), but packed in MessageColumns format. Returns null if the
+   * type has no columnar layout.
+   */
+  public byte[] queryColumns (MessageType type, int first, int last)
+  {
+    if (!MessageColumns.hasLayout(type))
+      return null;
+    return MessageColumns.encode(type.name(), query(type, first, last));
+  }
+
+  /**
+   * Discards everything recorded, keeping the depths.
+   */
+  public synchronized void clear ()
+  {
+    for (int i = 0; i < rings.length; i++) {
+      if (null != rings[i])
+        rings[i] = new Ring(rings[i].depth);
+    }
+  }
+
+  int timeslotOf (MessageType type, Object msg)
+  {
+    ToIntFunction<Object> key = keys.get(type);
+    return (null == key) ? currentTimeslot : key.applyAsInt(msg);
+  }
+
+  private static <M> void key (MessageType type, Class<M> clazz,
+                               ToIntFunction<M> getter)
+  {
+    keys.put(type, msg -> getter.applyAsInt(clazz.cast(msg)));
+  }
+
+  // Per-timeslot buckets for one type; timeslot t lives in slot t mod depth
+  private static class Ring
+  {
+    final int depth;
+    final int[] timeslots;
+    final List<Object>[] buckets;
+    int newest = -1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Ring (int depth)
+    {
+      super();
+      this.depth = depth;
+      timeslots = new int[depth];
+      Arrays.fill(timeslots, -1);
+      buckets = new List[depth];
+    }
+
+    synchronized void add (int timeslot, Object msg)
+    {
+      if (timeslot <= newest - depth)
+        return; // already aged out
+      int slot = Math.floorMod(timeslot, depth);
+      if (timeslots[slot] != timeslot) {
+        if (null == buckets[slot])
+          buckets[slot] = new ArrayList<>();
+        else
+          buckets[slot].clear();
+        timeslots[slot] = timeslot;
+      }
+      buckets[slot].add(msg);
+      newest = Math.max(newest, timeslot);
+    }
+
+    synchronized List<Object> range (int first, int last)
+    {
+      List<Object> result = new ArrayList<>();
+      int from = Math.max(first, newest - depth + 1);
+      int to = Math.min(last, newest);
+      for (int timeslot = from; timeslot <= to; timeslot++) {
+        int slot = Math.floorMod(timeslot, depth);
+        if (timeslots[slot] == timeslot)
+          result.addAll(buckets[slot]);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of Envoy.pollMessages(): the messages that arrived after the
+ * caller's cursor, and the cursor to pass next time.
+ *
+ * @author John Collins
+ */
+public final class MessagePoll
+{
+  private final long cursor;
+  private final Map<String, List<Object>> messages;
+  private final MessageSubscription subscription;
+
+  MessagePoll (long cursor, Map<String, List<Object>> messages,
+               MessageSubscription subscription)
+  {
+    super();
+    this.cursor = cursor;
+    this.messages = Collections.unmodifiableMap(messages);
+    this.subscription = subscription;
+  }
+
+  /**
+   * The cursor for the next poll.
+   */
+  public long getCursor ()
+  {
+    return cursor;
+  }
+
+  public boolean isEmpty ()
+  {
+    return messages.isEmpty();
+  }
+
+  /**
+   * The new messages, by type name in arrival order.
+   */
+  public Map<String, List<Object>> getMessages ()
+  {
+    return messages;
+  }
+
+  /**
+   * The new messages of the types that have a columnar layout, packed as by
+   * MessageColumns with the columns the subscription selects.
+   */
+  public Map<String, byte[]> getColumns ()
+  {
+    return MessageColumns.extract(new LinkedHashMap<>(messages), subscription);
+  }
+}
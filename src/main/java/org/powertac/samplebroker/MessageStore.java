@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.powertac.common.MarketPosition;
+
+/**
+ * Double-buffered store for the messages each service holds for Python.
+ * Message handlers append to the active buffer from JMS threads without
+ * taking the service monitor; a drain atomically swaps in the spare buffer,
+ * waits for any append still in flight on the old one, and copies its
+ * contents out. Each buffer holds one list per MessageType, in the slot
+ * given by its ordinal. The lists are cleared rather than discarded, so
+ * after the first few timeslots they are already the right size.
+ *
+ * By default the lists are unbounded. setLimit() caps a type at a number of
+ * buffered messages, with an Overflow policy that says what happens to the
+ * next one; drops and coalesced messages are counted per type.
+ *
+ * Every message is stamped with a sequence number, shared by all the stores
+ * in a session, so poll() can return what arrived after a cursor without
+ * disturbing the buffers.
+ *
+ * @author John Collins
+ */
+public class MessageStore
+{
+  static private Logger log = LogManager.getLogger(MessageStore.class);
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  // message stamps, increasing in arrival order across all stores
+  private static final AtomicLong sequence = new AtomicLong(0l);
+
+  /**
+   * What to do with a message that arrives when its type is at capacity.
+   */
+  public enum Overflow
+  {
+    /** Discard the oldest buffered message of the type. */
+    DROP_OLDEST,
+    /** Replace the buffered message it supersedes: for MarketPosition, the
+     *  one for the same timeslot; for other types, the latest one. The type
+     *  is coalesced this way even below capacity. */
+    COALESCE_LATEST,
+    /** Make the handler thread wait for a drain, for at most the block
+     *  timeout; after that, discard the oldest as in DROP_OLDEST. */
+    BLOCK
+  }
+
+  private final AtomicReference<Buffer> active;
+  private Buffer spare;
+  private volatile MessageSubscription subscription = MessageSubscription.ALL;
+  private volatile MessageHistory history;
+
+  // capacity limits by type ordinal, null where unbounded
+  private volatile Limit[] limits = new Limit[MessageType.count()];
+  private volatile long blockTimeout = 1000l;
+  private final Object room = new Object();
+
+  private final AtomicLongArray dropped = new AtomicLongArray(MessageType.count());
+  private final AtomicLongArray coalesced = new AtomicLongArray(MessageType.count());
+
+  public MessageStore ()
+  {
+    super();
+    active = new AtomicReference<>(new Buffer());
+    spare = new Buffer();
+  }
+
+  /**
+   * Appends a message, filed under the MessageType registered for its class.
+   * Messages of unregistered classes are ignored.
+   */
+  public void add (Object msg)
+  {
+    MessageType type = MessageType.forClass(msg.getClass());
+    if (null == type)
+      log.warn("No message type registered for {}", msg.getClass().getName());
+    else
+      add(type, msg);
+  }
+
+  /**
+   * Appends a message of the given type, unless the type is not subscribed.
+   * The history, if there is one, records it either way.
+   */
+  public void add (MessageType type, Object msg)
+  {
+    MessageHistory keeper = history;
+    if (null != keeper)
+      keeper.record(type, msg);
+    if (!subscription.includes(type))
+      return;
+    Limit limit = limits[type.ordinal()];
+    if (null != limit && limit.policy == Overflow.BLOCK)
+      awaitRoom(type, limit.capacity);
+    while (true) {
+      Buffer buffer = active.get();
+      buffer.writers.incrementAndGet();
+      try {
+        // if a drain swapped buffers since we looked, try the new one
+        if (buffer == active.get()) {
+          buffer.append(type, msg, limit);
+          return;
+        }
+      } finally {
+        buffer.writers.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes and returns everything in the store, as a map from type name to
+   * messages in arrival order. The result is never null.
+   */
+  public synchronized Map<String, List<Object>> drain ()
+  {
+    Buffer full = active.getAndSet(spare);
+    while (full.writers.get() > 0)
+      Thread.onSpinWait();
+    Map<String, List<Object>> result = full.export(type -> true);
+    spare = full;
+    signalRoom();
+    return result;
+  }
+
+  /**
+   * Removes and returns the messages of the selected types only, leaving
+   * the others in place.
+   */
+  public synchronized Map<String, List<Object>> drain (Predicate<MessageType> select)
+  {
+    Map<String, List<Object>> result = active.get().export(select);
+    signalRoom();
+    return result;
+  }
+
+  public MessageSubscription getSubscription ()
+  {
+    return subscription;
+  }
+
+  /**
+   * Installs a new subscription. Buffered messages of types it no longer
+   * includes are discarded.
+   */
+  public void setSubscription (MessageSubscription newSubscription)
+  {
+    subscription = newSubscription;
+    drain(type -> !newSubscription.includes(type));
+  }
+
+  /**
+   * Returns the stamp of the most recent message added to any store, to
+   * use as a cursor for poll().
+   */
+  public static long getSequence ()
+  {
+    return sequence.get();
+  }
+
+  /**
+   * Returns, without removing them, the buffered messages stamped after
+   * since and no later than upTo, by type name in arrival order. Messages
+   * that were drained or dropped in the meantime are not included. Pass
+   * the value of getSequence() taken just before the call as upTo, and
+   * use it as the next cursor.
+   */
+  public Map<String, List<Object>> poll (long since, long upTo)
+  {
+    return active.get().collect(since, upTo);
+  }
+
+  /**
+   * Sets the history that records messages as they arrive, or null for none.
+   */
+  public void setHistory (MessageHistory history)
+  {
+    this.history = history;
+  }
+
+  /**
+   * Caps the number of buffered messages of the given type. A capacity of
+   * zero or less removes the cap.
+   */
+  public void setLimit (MessageType type, int capacity, Overflow policy)
+  {
+    Limit[] newLimits = limits.clone();
+    newLimits[type.ordinal()] =
+        (capacity > 0) ? new Limit(capacity, policy) : null;
+    limits = newLimits;
+    signalRoom();
+  }
+
+  /**
+   * Longest time, in msec, a handler waits for room under the BLOCK policy.
+   */
+  public void setBlockTimeout (long msec)
+  {
+    blockTimeout = msec;
+  }
+
+  /**
+   * Number of messages of the given type dropped at capacity so far.
+   */
+  public long getDropped (MessageType type)
+  {
+    return dropped.get(type.ordinal());
+  }
+
+  /**
+   * Number of messages of the given type replaced by a later one so far.
+   */
+  public long getCoalesced (MessageType type)
+  {
+    return coalesced.get(type.ordinal());
+  }
+
+  /**
+   * Number of messages of the given type currently buffered.
+   */
+  public int size (MessageType type)
+  {
+    List<Object> msgs = active.get().lists[type.ordinal()];
+    synchronized(msgs) {
+      return msgs.size();
+    }
+  }
+
+  // Waits, outside the writer count so a drain can proceed, until the
+  // type is below capacity or the block timeout expires
+  private void awaitRoom (MessageType type, int capacity)
+  {
+    long deadline = System.currentTimeMillis() + blockTimeout;
+    synchronized(room) {
+      while (size(type) >= capacity) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0l) {
+          log.warn("{} buffer still full after {} msec", type, blockTimeout);
+          return;
+        }
+        try {
+          room.wait(remaining);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void signalRoom ()
+  {
+    synchronized(room) {
+      room.notifyAll();
+    }
+  }
+
+  /**
+   * Discards everything in the store.
+   */
+  public void clear ()
+  {
+    drain();
+  }
+
+  // Capacity and overflow policy for one type
+  static class Limit
+  {
+    final int capacity;
+    final Overflow policy;
+
+    Limit (int capacity, Overflow policy)
+    {
+      super();
+      this.capacity = capacity;
+      this.policy = policy;
+    }
+  }
+
+  // True if the later message supersedes the earlier under COALESCE_LATEST
+  private static boolean supersedes (Object later, Object earlier)
+  {
+    if (later instanceof MarketPosition && earlier instanceof MarketPosition)
+      return ((MarketPosition) later).getTimeslotIndex()
+          == ((MarketPosition) earlier).getTimeslotIndex();
+    return true;
+  }
+
+  // One side of the double buffer
+  private class Buffer
+  {
+    final AtomicInteger writers = new AtomicInteger(0);
+    final List<Object>[] lists;
+    final Stamps[] stamps;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Buffer ()
+    {
+      lists = new List[MessageType.count()];
+      stamps = new Stamps[MessageType.count()];
+      for (int i = 0; i < lists.length; i++) {
+        lists[i] = new ArrayList<>(INITIAL_CAPACITY);
+        stamps[i] = new Stamps();
+      }
+    }
+
+    void append (MessageType type, Object msg, Limit limit)
+    {
+      int slot = type.ordinal();
+      List<Object> msgs = lists[slot];
+      Stamps stamp = stamps[slot];
+      synchronized(msgs) {
+        // stamped under the lock, so poll() never sees a later stamp
+        // before an earlier one
+        if (null != limit) {
+          if (limit.policy == Overflow.COALESCE_LATEST) {
+            for (int i = msgs.size() - 1; i >= 0; i--) {
+              if (supersedes(msg, msgs.get(i))) {
+                msgs.remove(i);
+                stamp.remove(i);
+                coalesced.incrementAndGet(slot);
+                break;
+              }
+            }
+          }
+          while (msgs.size() >= limit.capacity) {
+            msgs.remove(0);
+            stamp.remove(0);
+            dropped.incrementAndGet(slot);
+          }
+        }
+        msgs.add(msg);
+        stamp.add(sequence.incrementAndGet());
+      }
+    }
+
+    Map<String, List<Object>> export (Predicate<MessageType> select)
+    {
+      Map<String, List<Object>> result = new LinkedHashMap<>();
+      for (int i = 0; i < lists.length; i++) {
+        MessageType type = MessageType.get(i);
+        if (!select.test(type))
+          continue;
+        List<Object> msgs = lists[i];
+        synchronized(msgs) {
+          if (!msgs.isEmpty()) {
+            result.put(type.name(), new ArrayList<>(msgs));
+            msgs.clear();
+            stamps[i].clear();
+          }
+        }
+      }
+      return result;
+    }
+
+    Map<String, List<Object>> collect (long since, long upTo)
+    {
+      Map<String, List<Object>> result = new LinkedHashMap<>();
+      for (int i = 0; i < lists.length; i++) {
+        List<Object> msgs = lists[i];
+        synchronized(msgs) {
+          // stamps increase along the list, so scan back from the end
+          Stamps stamp = stamps[i];
+          int end = stamp.size;
+          while (end > 0 && stamp.values[end - 1] > upTo)
+            end -= 1;
+          int begin = end;
+          while (begin > 0 && stamp.values[begin - 1] > since)
+            begin -= 1;
+          if (begin < end)
+            result.put(MessageType.get(i).name(),
+                       new ArrayList<>(msgs.subList(begin, end)));
+        }
+      }
+      return result;
+    }
+  }
+
+  // Growable array of message stamps, parallel to a message list
+  private static class Stamps
+  {
+    long[] values = new long[INITIAL_CAPACITY];
+    int size = 0;
+
+    void add (long value)
+    {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    void remove (int index)
+    {
+      System.arraycopy(values, index + 1, values, index, size - index - 1);
+      size -= 1;
+    }
+
+    void clear ()
+    {
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The message types Python wants buffered, and optionally, per type, the
+ * columns it wants in the columnar export. Messages of other types are
+ * dropped as they arrive. Instances are immutable; Envoy installs a new one
+ * in each service's MessageStore when Python changes its subscription.
+ *
+ * @author John Collins
+ */
+public final class MessageSubscription
+{
+  static private Logger log = LogManager.getLogger(MessageSubscription.class);
+
+  /** Everything, with all columns. This is the default. */
+  public static final MessageSubscription ALL = new MessageSubscription(true);
+
+  private final boolean[] types;
+
+  // selected column names by type ordinal, null for all columns
+  private final Set<String>[] fields;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private MessageSubscription (boolean all)
+  {
+    super();
+    types = new boolean[MessageType.count()];
+    fields = new Set[MessageType.count()];
+    if (all)
+      Arrays.fill(types, true);
+  }
+
+  /**
+   * Subscribes to the named types, with all their columns.
+   */
+  public static MessageSubscription of (Collection<String> typeNames)
+  {
+    MessageSubscription result = new MessageSubscription(false);
+    for (String name : typeNames)
+      result.select(name, null);
+    return result;
+  }
+
+  /**
+   * Subscribes to the types named by the keys of the map. A null or empty
+   * value selects all columns of that type; otherwise only the listed
+   * columns appear in its columnar export.
+   */
+  public static MessageSubscription of (Map<String, ? extends Collection<String>> typeFields)
+  {
+    MessageSubscription result = new MessageSubscription(false);
+    for (Map.Entry<String, ? extends Collection<String>> entry : typeFields.entrySet())
+      result.select(entry.getKey(), entry.getValue());
+    return result;
+  }
+
+  private void select (String name, Collection<String> columns)
+  {
+    MessageType type = MessageType.forName(name);
+    if (null == type) {
+      log.warn("Subscription to unknown message type {}", name);
+      return;
+    }
+    types[type.ordinal()] = true;
+    if (null != columns && !columns.isEmpty()) {
+      List<String> known = MessageColumns.getColumnNames(name);
+      for (String column : columns) {
+        if (!known.contains(column))
+          log.warn("{} has no column {}", name, column);
+      }
+      fields[type.ordinal()] =
+          Collections.unmodifiableSet(new LinkedHashSet<>(columns));
+    }
+  }
+
+  /**
+   * True if messages of the given type are to be buffered.
+   */
+  public boolean includes (MessageType type)
+  {
+    return types[type.ordinal()];
+  }
+
+  /**
+   * Returns the selected columns for the given type, or null if all its
+   * columns are wanted.
+   */
+  public Set<String> getFields (MessageType type)
+  {
+    return fields[type.ordinal()];
+  }
+
+  /**
+   * Names of the subscribed types, in slot order.
+   */
+  public List<String> getTypeNames ()
+  {
+    List<String> result = new ArrayList<>();
+    for (int i = 0; i < types.length; i++) {
+      if (types[i])
+        result.add(MessageType.get(i).name());
+    }
+    return result;
+  }
+}
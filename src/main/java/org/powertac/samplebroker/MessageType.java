@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.powertac.common.BalancingTransaction;
+import org.powertac.common.BankTransaction;
+import org.powertac.common.CapacityTransaction;
+import org.powertac.common.CashPosition;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.Competition;
+import org.powertac.common.DistributionTransaction;
+import org.powertac.common.MarketPosition;
+import org.powertac.common.MarketTransaction;
+import org.powertac.common.Orderbook;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.msg.BalanceReport;
+import org.powertac.common.msg.CustomerBootstrapData;
+import org.powertac.common.msg.DistributionReport;
+import org.powertac.common.msg.MarketBootstrapData;
+import org.powertac.common.msg.SimEnd;
+import org.powertac.common.msg.TariffRevoke;
+import org.powertac.common.msg.TariffStatus;
+
+/**
+ * The message types the services buffer for Python. Each constant is named
+ * after its message class; the name is the key Python sees in the message
+ * maps. The ordinal is the slot a MessageStore keeps the type in, so
+ * buffering a message is an array access rather than a hash lookup.
+ * Buffering a new type takes one constant here and a handler that calls
+ * MessageStore.add(msg).
+ *
+ * @author John Collins
+ */
+public enum MessageType
+{
+  // context
+  SimEnd (SimEnd.class),
+  BankTransaction (BankTransaction.class),
+  CashPosition (CashPosition.class),
+  DistributionReport (DistributionReport.class),
+  Competition (Competition.class),
+  CustomerBootstrapData (CustomerBootstrapData.class),
+  MarketBootstrapData (MarketBootstrapData.class),
+  Properties (Properties.class),
+  WeatherReport (WeatherReport.class),
+  WeatherForecast (WeatherForecast.class),
+  // portfolio
+  TariffSpecification (TariffSpecification.class),
+  TariffStatus (TariffStatus.class),
+  TariffTransaction (TariffTransaction.class),
+  TariffRevoke (TariffRevoke.class),
+  // market
+  BalancingTransaction (BalancingTransaction.class),
+  ClearedTrade (ClearedTrade.class),
+  DistributionTransaction (DistributionTransaction.class),
+  CapacityTransaction (CapacityTransaction.class),
+  MarketPosition (MarketPosition.class),
+  MarketTransaction (MarketTransaction.class),
+  Orderbook (Orderbook.class),
+  BalanceReport (BalanceReport.class);
+
+  private static final MessageType[] all = values();
+
+  // resolved once per class, including subclasses of the registered ones
+  private static final ClassValue<MessageType> byClass = new ClassValue<>() {
+    @Override
+    protected MessageType computeValue (Class<?> clazz)
+    {
+      for (MessageType type : all) {
+        if (type.messageClass.isAssignableFrom(clazz))
+          return type;
+      }
+      return null;
+    }
+  };
+
+  private final Class<?> messageClass;
+
+  private MessageType (Class<?> messageClass)
+  {
+    this.messageClass = messageClass;
+  }
+
+  public Class<?> getMessageClass ()
+  {
+    return messageClass;
+  }
+
+  /**
+   * Number of registered types, which is the size of a slot array.
+   */
+  public static int count ()
+  {
+    return all.length;
+  }
+
+  /**
+   * Returns the type with the given ordinal.
+   */
+  public static MessageType get (int ordinal)
+  {
+    return all[ordinal];
+  }
+
+  /**
+   * Returns the type registered for the given message class, or null.
+   */
+  public static MessageType forClass (Class<?> clazz)
+  {
+    return byClass.get(clazz);
+  }
+
+  /**
+   * Returns the type with the given name, or null if there is none.
+   */
+  public static MessageType forName (String name)
+  {
+    for (MessageType type : all) {
+      if (type.name().equals(name))
+        return type;
+    }
+    return null;
+  }
+
+  /**
+   * The names of all registered types, in slot order.
+   */
+  public static List<String> names ()
+  {
+    List<String> result = new ArrayList<>(all.length);
+    for (MessageType type : all)
+      result.add(type.name());
+    return result;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.powertac.common.Orderbook;
+import org.powertac.common.OrderbookOrder;
+
+/**
+ * Supply and demand curves built from the Orderbooks the wholesale market
+ * publishes after each clearing, which hold the orders left uncleared. For
+ * each orderbook, the asks become a supply curve and the bids a demand
+ * curve: prices sorted best first, each with the cumulative MWh available at
+ * that price or better. Prices and quantities are positive, so the bid
+ * prices are what the bidders would pay. Market orders, which have no limit
+ * price, sort first with an infinite price.
+ *
+ * Curves are kept for the orderbooks received in the last few timeslots,
+ * so Python can see how the book for a target timeslot developed as it
+ * drew near.
+ *
+ * @author John Collins
+ */
+public class OrderbookCurves
+{
+  private final int window;
+  private final ArrayDeque<Curve> history = new ArrayDeque<>();
+  private final Map<Integer, Curve> latest = new HashMap<>();
+
+  /**
+   * Keeps the curves received in the last window timeslots; a window of less
+   * than one keeps those of the current timeslot.
+   */
+  public OrderbookCurves (int window)
+  {
+    super();
+    this.window = Math.max(1, window);
+  }
+
+  /**
+   * Builds the curves of an orderbook received in the given timeslot, and
+   * drops those that have aged out of the window.
+   */
+  public synchronized Curve add (Orderbook orderbook, int timeslot)
+  {
+    Curve curve = new Curve(orderbook, timeslot);
+    history.addLast(curve);
+    latest.put(curve.target, curve);
+    while (!history.isEmpty()
+           && history.getFirst().received <= timeslot - window) {
+      Curve old = history.removeFirst();
+      if (latest.get(old.target) == old)
+        latest.remove(old.target);
+    }
+    return curve;
+  }
+
+  /**
+   * Returns the latest curves for the given target timeslot, or null if
+   * there are none in the window.
+   */
+  public synchronized Curve getLatest (int target)
+  {
+    return latest.get(target);
+  }
+
+  /**
+   * Returns all the curves in the window for the given target timeslot,
+   * oldest first.
+   */
+  public synchronized List<Curve> getHistory (int target)
+  {
+    List<Curve> result = new ArrayList<>();
+    for (Curve curve : history) {
+      if (curve.target == target)
+        result.add(curve);
+    }
+    return result;
+  }
+
+  /**
+   * Estimates the price at which the given quantity would clear for the
+   * target timeslot, from its latest curves: buying (positive mWh) takes
+   * asks, selling (negative mWh) takes bids. Returns NaN if there are no
+   * curves, or if the quantity is more than the book holds.
+   */
+  public synchronized double estimateClearingPrice (int target, double mWh)
+  {
+    Curve curve = latest.get(target);
+    if (null == curve)
+      return Double.NaN;
+    return curve.estimateClearingPrice(mWh);
+  }
+
+  /**
+   * Number of curves in the window.
+   */
+  public synchronized int size ()
+  {
+    return history.size();
+  }
+
+  public synchronized void clear ()
+  {
+    history.clear();
+    latest.clear();
+  }
+
+  /**
+   * The supply and demand curves of one orderbook. Immutable.
+   */
+  public static class Curve
+  {
+    private final int target;
+    private final int received;
+    private final double clearingPrice;
+    private final double[] askPrices;
+    private final double[] askMWh;
+    private final double[] bidPrices;
+    private final double[] bidMWh;
+
+    Curve (Orderbook orderbook, int received)
+    {
+      super();
+      this.target = orderbook.getTimeslotIndex();
+      this.received = received;
+      Double price = orderbook.getClearingPrice();
+      this.clearingPrice = (null == price) ? Double.NaN : price;
+      int asks = orderbook.getAsks().size();
+      askPrices = new double[asks];
+      askMWh = new double[asks];
+      fill(orderbook.getAsks(), 1.0, askPrices, askMWh);
+      int bids = orderbook.getBids().size();
+      bidPrices = new double[bids];
+      bidMWh = new double[bids];
+      fill(orderbook.getBids(), -1.0, bidPrices, bidMWh);
+    }
+
+    public int getTimeslot ()
+    {
+      return target;
+    }
+
+    /**
+     * Timeslot in which the orderbook was received.
+     */
+    public int getReceived ()
+    {
+      return received;
+    }
+
+    /**
+     * Clearing price, or NaN if the market did not clear.
+     */
+    public double getClearingPrice ()
+    {
+      return clearingPrice;
+    }
+
+    /**
+     * Ask prices, lowest first.
+     */
+    public double[] getAskPrices ()
+    {
+      return askPrices.clone();
+    }
+
+    /**
+     * Cumulative MWh offered at or below each ask price.
+     */
+    public double[] getAskQuantities ()
+    {
+      return askMWh.clone();
+    }
+
+    /**
+     * Bid prices, highest first.
+     */
+    public double[] getBidPrices ()
+    {
+      return bidPrices.clone();
+    }
+
+    /**
+     * Cumulative MWh wanted at or above each bid price.
+     */
+    public double[] getBidQuantities ()
+    {
+      return bidMWh.clone();
+    }
+
+    /**
+     * Price of the last order needed to fill the given quantity: asks for
+     * positive mWh, bids for negative. NaN if the book is too thin.
+     */
+    public double estimateClearingPrice (double mWh)
+    {
+      double[] prices = (mWh >= 0.0) ? askPrices : bidPrices;
+      double[] quantities = (mWh >= 0.0) ? askMWh : bidMWh;
+      double needed = Math.abs(mWh);
+      for (int i = 0; i < quantities.length; i++) {
+        if (quantities[i] >= needed)
+          return prices[i];
+      }
+      return Double.NaN;
+    }
+
+    // Sorts orders best first and accumulates their quantities; sign turns
+    // limit prices and quantities positive
+    private static void fill (SortedSet<OrderbookOrder> orders, double sign,
+                              double[] prices, double[] quantities)
+    {
+      Iterator<OrderbookOrder> it = orders.iterator();
+      for (int i = 0; i < prices.length; i++) {
+        OrderbookOrder order = it.next();
+        Double limit = order.getLimitPrice();
+        double price = (null == limit) ? -sign * Double.POSITIVE_INFINITY
+                                       : sign * limit;
+        double quantity = Math.abs(order.getMWh());
+        // insertion sort; books are short and usually already in order
+        int j = i;
+        while (j > 0 && better(price, prices[j - 1], sign)) {
+          prices[j] = prices[j - 1];
+          quantities[j] = quantities[j - 1];
+          j -= 1;
+        }
+        prices[j] = price;
+        quantities[j] = quantity;
+      }
+      for (int i = 1; i < quantities.length; i++)
+        quantities[i] += quantities[i - 1];
+    }
+
+    // asks are better when cheaper, bids when higher
+    private static boolean better (double price, double than, double sign)
+    {
+      return (sign > 0.0) ? price < than : price > than;
+    }
+  }
+}
@@ -15,15 +15,21 @@
  */
 package org.powertac.samplebroker;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
 import org.powertac.common.Broker;
 import org.powertac.common.Competition;
@@ -36,12 +42,16 @@ import org.powertac.common.TariffSpecification;
 import org.powertac.common.TariffTransaction;
 import org.powertac.common.TimeService;
 import org.powertac.common.Timeslot;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherForecastPrediction;
+import org.powertac.common.WeatherReport;
 import org.powertac.common.config.ConfigurableValue;
 import org.powertac.common.enumerations.PowerType;
 import org.powertac.common.msg.BalancingControlEvent;
 import org.powertac.common.msg.BalancingOrder;
 import org.powertac.common.msg.CustomerBootstrapData;
 import org.powertac.common.msg.EconomicControlEvent;
+import org.powertac.common.msg.SimEnd;
 import org.powertac.common.msg.TariffRevoke;
 import org.powertac.common.msg.TariffStatus;
 import org.powertac.common.repo.CustomerRepo;
@@ -96,29 +106,75 @@ implements PortfolioManager, Initializable, Activatable
   private TimeService timeService;
 
   // ---- Portfolio records -----
-  // Customer records indexed by power type and by tariff. Note that the
+  // Customers and tariffs are given dense slots, in order of arrival, by
+  // their ids. Customer records are held in arrays indexed by customer slot,
+  // one per power type and one per tariff slot. Note that the
   // CustomerRecord instances are NOT shared between these structures, because
   // we need to keep track of subscriptions by tariff.
-  private Map<PowerType,
-      Map<CustomerInfo, CustomerRecord>> customerProfiles;
-  private Map<TariffSpecification,
-      Map<CustomerInfo, CustomerRecord>> customerSubscriptions;
-  private Map<PowerType, List<TariffSpecification>> competingTariffs;
+  private IdIndex customerIndex;
+  private IdIndex tariffIndex;
+  private CustomerInfo[] customers; // by customer slot
+  private TariffSpecification[] tariffs; // by tariff slot
+  private Map<PowerType, CustomerRecord[]> customerProfiles;
+  private CustomerRecord[][] customerSubscriptions; // by tariff slot
+  private CompetingTariffRegistry competingTariffs;
 
   // Keep track of a benchmark price to allow for comparisons between
   // tariff evaluations
   //private double benchmarkPrice = 0.0;
 
-  // These customer records need to be notified on activation
-  private List<CustomerRecord> notifyOnActivation = new ArrayList<>();
+  // Records with deferred usage in the current timeslot, to be smoothed on
+  // activation; the list is emptied and reused each timeslot
+  private List<CustomerRecord> dirtyRecords = new ArrayList<>();
+
+  // Net usage by index, summed over all the subscription records and
+  // scaled by their populations; kept up to date as records change
+  private double[] usageTotals;
+
+  // Per-customer usage of all the records, one row per record
+  private UsageMatrix usageMatrix;
+
+  // Deferred usage updates, smoothed together on activation
+  private SmoothingBatch smoothing = new SmoothingBatch();
+
+  // Weekly cost estimates, with a price table per tariff
+  private TariffEvaluator tariffEvaluator;
+
+  // Usage models for forecasting, one per subscription record
+  private UsageForecaster forecaster;
+
+  // Bootstrap data, held until every customer has sent its own and then
+  // turned into usage profiles in one parallel pass
+  private List<CustomerBootstrapData> pendingBootstrap = new ArrayList<>();
+  private volatile CountDownLatch portfolioReady = new CountDownLatch(1);
+
+  // Profiles and statistics saved by an earlier game, if any; profiles are
+  // applied as their customers' records are created
+  private WarmStart warmStart;
+
+  // Competitors' tariffs by "broker/POWERTYPE": count, mean of their mean
+  // hourly prices, lowest mean hourly price
+  private Map<String, double[]> competitorStats;
+
+  // Hour of the week of timeslot 0, for the current time base
+  private long cachedBase = -1l;
+  private int baseHourOfWeek = 0;
   
-  // Map for recording per-timeslot messages
-  private Map<String, List<Object>> pendingMessages;
+  // Per-timeslot messages for Python
+  private MessageStore messages = new MessageStore();
 
 
   // Configurable parameters for tariff composition
   // Override defaults in src/main/resources/config/broker.config
   // or in top-level config file
+  @ConfigurableValue(valueType = "Boolean",
+          description = "Keep customer usage profiles outside the Java heap")
+  private boolean usageOffHeap = false;
+
+  @ConfigurableValue(valueType = "String",
+          description = "File for warm-start customer profiles, none if empty")
+  private String warmStartFile = "";
+
   //@ConfigurableValue(valueType = "Double",
   //        description = "target profit margin")
   //private double defaultMargin = 0.5;
@@ -147,10 +203,31 @@ implements PortfolioManager, Initializable, Activatable
   {
     this.brokerContext = context;
     propertiesService.configureMe(this);
+    customerIndex = new IdIndex();
+    tariffIndex = new IdIndex();
+    customers = new CustomerInfo[64];
+    tariffs = new TariffSpecification[64];
     customerProfiles = new LinkedHashMap<>();
-    customerSubscriptions = new LinkedHashMap<>();
-    competingTariffs = new HashMap<>();
-    notifyOnActivation.clear();
+    customerSubscriptions = new CustomerRecord[64][];
+    competingTariffs = new CompetingTariffRegistry();
+    dirtyRecords.clear();
+    usageTotals = new double[context.getUsageRecordLength()];
+    usageMatrix = new UsageMatrix(context.getUsageRecordLength(), usageOffHeap);
+    tariffEvaluator = new TariffEvaluator();
+    forecaster = new UsageForecaster();
+    cachedBase = -1l;
+    pendingBootstrap.clear();
+    portfolioReady = new CountDownLatch(1);
+    competitorStats = new LinkedHashMap<>();
+    warmStart = null;
+    if (null != warmStartFile && !warmStartFile.isEmpty()) {
+      warmStart = WarmStart.load(Paths.get(warmStartFile),
+                                 context.getUsageRecordLength());
+      if (null != warmStart)
+        warmStart.getStats().forEach((key, values) ->
+                                     competitorStats.put(key, values.clone()));
+    }
+    messages.clear();
     Envoy envoy = Envoy.getInstance();
     envoy.registerService("PortfolioManager", this);
   }
@@ -164,16 +241,21 @@ implements PortfolioManager, Initializable, Activatable
   CustomerRecord getCustomerRecordByPowerType (PowerType type,
                                                CustomerInfo customer)
   {
-    Map<CustomerInfo, CustomerRecord> customerMap =
-        customerProfiles.get(type);
-    if (customerMap == null) {
-      customerMap = new LinkedHashMap<>();
-      customerProfiles.put(type, customerMap);
+    int slot = customerSlot(customer);
+    CustomerRecord[] records = customerProfiles.get(type);
+    if (null == records || slot >= records.length) {
+      records = fit(records, slot);
+      customerProfiles.put(type, records);
     }
-    CustomerRecord record = customerMap.get(customer);
+    CustomerRecord record = records[slot];
     if (record == null) {
       record = new CustomerRecord(customer);
-      customerMap.put(customer, record);
+      records[slot] = record;
+      if (null != warmStart) {
+        double[] profile = warmStart.getProfile(profileKey(customer, type));
+        for (int i = 0; null != profile && i < profile.length; i++)
+          usageMatrix.set(record.row, i, profile[i]);
+      }
     }
     return record;
   }
@@ -185,44 +267,199 @@ implements PortfolioManager, Initializable, Activatable
   CustomerRecord getCustomerRecordByTariff (TariffSpecification spec,
                                             CustomerInfo customer)
   {
-    Map<CustomerInfo, CustomerRecord> customerMap =
-        customerSubscriptions.get(spec);
-    if (customerMap == null) {
-      customerMap = new LinkedHashMap<>();
-      customerSubscriptions.put(spec, customerMap);
-    }
-    CustomerRecord record = customerMap.get(customer);
+    int tariffSlot = tariffSlot(spec);
+    int customerSlot = customerSlot(customer);
+    CustomerRecord[] records =
+        fit(customerSubscriptions[tariffSlot], customerSlot);
+    customerSubscriptions[tariffSlot] = records;
+    CustomerRecord record = records[customerSlot];
     if (record == null) {
       // seed with the generic record for this customer
       record =
           new CustomerRecord(getCustomerRecordByPowerType(spec.getPowerType(),
                                                           customer));
-      customerMap.put(customer, record);
+      record.counted = true;
+      record.tariffSlot = tariffSlot;
+      record.model = forecaster.allocate();
+      records[customerSlot] = record;
       // set up deferred activation in case this customer might do regulation
       record.setDeferredActivation();
     }
     return record;
   }
-  
+
+  /**
+   * Drops a subscription record that no longer has subscribers: it leaves
+   * the usage totals and the activation set, and its usage row is released.
+   * A later signup starts a new record from the customer's profile.
+   */
+  void retireSubscription (CustomerRecord record)
+  {
+    record.setPopulation(0);
+    record.retired = true;
+    customerSubscriptions[record.tariffSlot][record.customerSlot] = null;
+    usageMatrix.release(record.row);
+    forecaster.release(record.model);
+  }
+
+  // Hour of the week, 0 being Monday 00:00 UTC, at the start of the given
+  // timeslot; timeslots are an hour long
+  private int hourOfWeek (int timeslot)
+  {
+    long base = timeService.getBase();
+    if (base != cachedBase) {
+      DateTime start = new DateTime(base, DateTimeZone.UTC);
+      baseHourOfWeek = (start.getDayOfWeek() - 1) * 24 + start.getHourOfDay();
+      cachedBase = base;
+    }
+    return Math.floorMod(baseHourOfWeek + timeslot, TariffEvaluator.HOURS);
+  }
+
+  // Returns the slot of the given customer, assigning one if needed
+  private int customerSlot (CustomerInfo customer)
+  {
+    int slot = customerIndex.add(customer.getId());
+    if (slot == customers.length)
+      customers = Arrays.copyOf(customers, slot * 2);
+    customers[slot] = customer;
+    return slot;
+  }
+
+  // Returns the slot of the given tariff, assigning one if needed
+  private int tariffSlot (TariffSpecification spec)
+  {
+    int slot = tariffIndex.add(spec.getId());
+    if (slot == tariffs.length) {
+      tariffs = Arrays.copyOf(tariffs, slot * 2);
+      customerSubscriptions = Arrays.copyOf(customerSubscriptions, slot * 2);
+    }
+    tariffs[slot] = spec;
+    return slot;
+  }
+
+  // Returns records, or a copy of it, big enough to hold the given slot
+  private CustomerRecord[] fit (CustomerRecord[] records, int slot)
+  {
+    if (null == records)
+      return new CustomerRecord[Math.max(slot + 1, customers.length)];
+    if (slot < records.length)
+      return records;
+    return Arrays.copyOf(records, Math.max(slot + 1, customers.length));
+  }
+
   /**
    * Finds the list of competing tariffs for the given PowerType.
    */
   List<TariffSpecification> getCompetingTariffs (PowerType powerType)
   {
-    List<TariffSpecification> result = competingTariffs.get(powerType);
-    if (result == null) {
-      result = new ArrayList<TariffSpecification>();
-      competingTariffs.put(powerType, result);
-    }
-    return result;
+    return competingTariffs.getByPowerType(powerType);
+  }
+
+  /**
+   * Returns the registry of competing tariffs, which Python can query by
+   * power type or broker, or for the changes in a range of timeslots.
+   */
+  public CompetingTariffRegistry getCompetingTariffRegistry ()
+  {
+    return competingTariffs;
   }
 
   /**
-   * Adds a new competing tariff to the list.
+   * Adds a new competing tariff to the registry.
    */
   private void addCompetingTariff (TariffSpecification spec)
   {
-    getCompetingTariffs(spec.getPowerType()).add(spec);
+    competingTariffs.add(spec, timeslotRepo.currentSerialNumber());
+    double price = meanPrice(spec);
+    double[] stats =
+        competitorStats.computeIfAbsent(spec.getBroker().getUsername() + "/"
+                                        + spec.getPowerType(),
+                                        k -> new double[] {0.0, 0.0, price});
+    stats[0] += 1.0;
+    stats[1] += (price - stats[1]) / stats[0];
+    stats[2] = Math.min(stats[2], price);
+  }
+
+  /**
+   * Statistics of competitors' tariffs, by "broker/POWERTYPE", including
+   * those restored from the warm-start file: the number of tariffs, the mean
+   * of their mean hourly prices, and the lowest mean hourly price.
+   */
+  public synchronized Map<String, double[]> getCompetitorTariffStats ()
+  {
+    Map<String, double[]> result = new LinkedHashMap<>();
+    competitorStats.forEach((key, values) -> result.put(key, values.clone()));
+    return result;
+  }
+
+  /**
+   * Saves the customer profiles and competitor statistics to the given
+   * file, for a later game to start from. Each customer's profile includes
+   * what its subscription records learned in this game. Profiles restored
+   * from the warm-start file for customers not seen in this game are kept.
+   * Returns false if the file could not be written.
+   */
+  public synchronized boolean saveWarmStart (String path)
+  {
+    Map<String, double[]> profiles = new LinkedHashMap<>();
+    if (null != warmStart) {
+      for (String key : warmStart.getProfileKeys())
+        profiles.put(key, warmStart.getProfile(key));
+    }
+    for (Map.Entry<PowerType, CustomerRecord[]> entry : customerProfiles.entrySet()) {
+      for (CustomerRecord record : entry.getValue()) {
+        if (null != record)
+          profiles.put(profileKey(record.customer, entry.getKey()),
+                       learnedProfile(record, entry.getKey()));
+      }
+    }
+    return WarmStart.write(Paths.get(path), usageMatrix.getColumns(),
+                           profiles, competitorStats);
+  }
+
+  // A customer's profile for a power type, with its subscription records
+  // folded in: at each index where any of them has usage, the mean of their
+  // usage weighted by subscribed population replaces the profile's value
+  private double[] learnedProfile (CustomerRecord profile, PowerType type)
+  {
+    double[] result = usageMatrix.getRow(profile.row);
+    double[] sum = new double[result.length];
+    double[] weight = new double[result.length];
+    for (int t = 0; t < tariffIndex.size(); t++) {
+      CustomerRecord[] records = customerSubscriptions[t];
+      if (null == records || profile.customerSlot >= records.length
+          || tariffs[t].getPowerType() != type)
+        continue;
+      CustomerRecord record = records[profile.customerSlot];
+      if (null == record || record.subscribedPopulation <= 0)
+        continue;
+      for (int i = 0; i < result.length; i++) {
+        double usage = usageMatrix.get(record.row, i);
+        if (usage != 0.0) {
+          sum[i] += usage * record.subscribedPopulation;
+          weight[i] += record.subscribedPopulation;
+        }
+      }
+    }
+    for (int i = 0; i < result.length; i++) {
+      if (weight[i] > 0.0)
+        result[i] = sum[i] / weight[i];
+    }
+    return result;
+  }
+
+  // Mean of the tariff's hourly prices over a week
+  private double meanPrice (TariffSpecification spec)
+  {
+    double sum = 0.0;
+    for (double price : tariffEvaluator.getPriceTable(spec))
+      sum += price;
+    return sum / TariffEvaluator.HOURS;
+  }
+
+  private static String profileKey (CustomerInfo customer, PowerType type)
+  {
+    return customer.getName() + "/" + type;
   }
 
   /**
@@ -231,36 +468,154 @@ implements PortfolioManager, Initializable, Activatable
   @Override
   public double collectUsage (int index)
   {
-    double result = 0.0;
-    for (Map<CustomerInfo, CustomerRecord> customerMap : customerSubscriptions.values()) {
-      for (CustomerRecord record : customerMap.values()) {
-        result += record.getUsage(index);
+    if (index < 0) {
+      log.warn("usage requested for negative index " + index);
+      index = 0;
+    }
+    return -usageTotals[index % usageTotals.length]; // convert to needed energy account balance
+  }
+
+  /**
+   * Forecasts total net usage for count timeslots starting at the given
+   * one, in the sign convention of collectUsage(). Each subscription record
+   * contributes its model's forecast (see {@link UsageForecaster}) times its
+   * subscribed population; records whose model has not yet seen the hour of
+   * day fall back to their smoothed usage profile.
+   */
+  @Override
+  public synchronized double[] forecastUsage (int timeslot, int count)
+  {
+    double[] result = new double[count];
+    int[] hours = new int[count];
+    for (int k = 0; k < count; k++)
+      hours[k] = hourOfWeek(timeslot + k);
+    for (CustomerRecord record : subscriptionRecords()) {
+      if (record.subscribedPopulation == 0)
+        continue;
+      for (int k = 0; k < count; k++) {
+        double usage = forecaster.forecast(record.model, timeslot + k, hours[k]);
+        if (Double.isNaN(usage))
+          usage = usageMatrix.get(record.row, record.getIndex(timeslot + k));
+        result[k] -= usage * record.subscribedPopulation;
       }
     }
-    return -result; // convert to needed energy account balance
+    return result;
+  }
+
+  /**
+   * Forecasts total net usage for the 24 timeslots after the current one.
+   */
+  public double[] getDemandForecast ()
+  {
+    return forecastUsage(timeslotRepo.currentSerialNumber() + 1, 24);
+  }
+
+  /**
+   * Returns collectUsage(i) for every index i of the usage record, in a
+   * single array.
+   */
+  public synchronized double[] collectUsageProfile ()
+  {
+    double[] result = new double[usageTotals.length];
+    for (int i = 0; i < result.length; i++)
+      result[i] = -usageTotals[i];
+    return result;
   }
 
   // -------------- Message handlers -------------------
   /**
    * Handles CustomerBootstrapData by populating the customer model 
    * corresponding to the given customer and power type. This gives the
-   * broker a running start.
+   * broker a running start. The data is held until every customer in the
+   * CustomerRepo has sent its own, or until the first activation, and then
+   * all the profiles are built together.
    * 
    * Note that this message type is recorded in the ContextManager; here we just want to initialize
    * our customer records.
    */
   public synchronized void handleMessage (CustomerBootstrapData cbd)
   {
-    CustomerInfo customer =
-            customerRepo.findByNameAndPowerType(cbd.getCustomerName(),
-                                                cbd.getPowerType());
-    CustomerRecord record = getCustomerRecordByPowerType(cbd.getPowerType(), customer);
-    int subs = record.subscribedPopulation;
-    record.subscribedPopulation = customer.getPopulation();
-    for (int i = 0; i < cbd.getNetUsage().length; i++) {
-      record.produceConsume(cbd.getNetUsage()[i], i);
+    pendingBootstrap.add(cbd);
+    if (isPortfolioReady() || pendingBootstrap.size() >= customerRepo.size())
+      processBootstrap();
+  }
+
+  /**
+   * Builds the usage profiles from the bootstrap data received so far, then
+   * signals that the portfolio is ready. Records are looked up and written
+   * back in this thread; the smoothing itself runs in parallel across
+   * customers on the common fork-join pool.
+   */
+  synchronized void processBootstrap ()
+  {
+    Map<CustomerRecord, List<double[]>> work = new LinkedHashMap<>();
+    for (CustomerBootstrapData cbd : pendingBootstrap) {
+      CustomerInfo customer =
+          customerRepo.findByNameAndPowerType(cbd.getCustomerName(),
+                                              cbd.getPowerType());
+      if (null == customer) {
+        log.warn("Bootstrap data for unknown customer {}", cbd.getCustomerName());
+        continue;
+      }
+      CustomerRecord record =
+          getCustomerRecordByPowerType(cbd.getPowerType(), customer);
+      work.computeIfAbsent(record, k -> new ArrayList<>()).add(cbd.getNetUsage());
+    }
+    pendingBootstrap.clear();
+    CustomerRecord[] records = work.keySet().toArray(new CustomerRecord[0]);
+    double[][] profiles = new double[records.length][];
+    for (int i = 0; i < records.length; i++)
+      profiles[i] = usageMatrix.getRow(records[i].row);
+    IntStream.range(0, records.length).parallel().forEach(i -> {
+      for (double[] netUsage : work.get(records[i]))
+        smoothProfile(profiles[i], netUsage,
+                      records[i].customer.getPopulation(), records[i].alpha);
+    });
+    for (int i = 0; i < records.length; i++) {
+      CustomerRecord record = records[i];
+      record.row = usageMatrix.writable(record.row);
+      for (int c = 0; c < profiles[i].length; c++)
+        usageMatrix.set(record.row, c, profiles[i][c]);
+    }
+    log.info("Bootstrapped {} customer profiles", records.length);
+    portfolioReady.countDown();
+  }
+
+  // Smooths a customer's net usage into a per-customer profile, as
+  // produceConsume() would one timeslot at a time
+  private static void smoothProfile (double[] profile, double[] netUsage,
+                                     int population, double alpha)
+  {
+    for (int i = 0; i < netUsage.length; i++) {
+      int index = i % profile.length;
+      profile[index] =
+          SmoothingBatch.smooth(netUsage[i], population, alpha, profile[index]);
+    }
+  }
+
+  /**
+   * True once the bootstrap data has been turned into usage profiles.
+   */
+  public boolean isPortfolioReady ()
+  {
+    return portfolioReady.getCount() == 0;
+  }
+
+  /**
+   * Waits up to the given number of msec for the portfolio to be ready, so
+   * Python can make its first tariff decisions as soon as the bootstrap
+   * profiles exist. Returns isPortfolioReady().
+   */
+  public boolean awaitPortfolioReady (long timeoutMillis)
+  {
+    try {
+      return portfolioReady.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException ie) {
+      log.warn("Interrupted waiting for portfolio");
+      Thread.currentThread().interrupt();
+      return isPortfolioReady();
     }
-    record.subscribedPopulation = subs;
   }
 
   /**
@@ -287,7 +642,8 @@ implements PortfolioManager, Initializable, Activatable
       addCompetingTariff(spec);
       tariffRepo.addSpecification(spec);
     }
-    addPendingMessage("TariffSpecification", spec);
+    tariffSlot(spec);
+    addPendingMessage(spec);
   }
 
   /**
@@ -297,7 +653,7 @@ implements PortfolioManager, Initializable, Activatable
   public synchronized void handleMessage (TariffStatus ts)
   {
     log.info("TariffStatus: " + ts.getStatus());
-    addPendingMessage("TariffStatus", ts);
+    addPendingMessage(ts);
   }
 
   /**
@@ -323,7 +679,11 @@ implements PortfolioManager, Initializable, Activatable
       }
     }
     if (!ignore)
-      addPendingMessage("TariffTransaction", ttx);
+      addPendingMessage(ttx);
+    if (null == newSpec || null == ttx.getCustomerInfo()) {
+      // PUBLISH and REVOKE fees concern no customer
+      return;
+    }
 
     TariffTransaction.Type txType = ttx.getTxType();
     CustomerRecord record = getCustomerRecordByTariff(ttx.getTariffSpec(),
@@ -336,6 +696,8 @@ implements PortfolioManager, Initializable, Activatable
     else if (TariffTransaction.Type.WITHDRAW == txType) {
       // customers presumably found a better deal
       record.withdraw(ttx.getCustomerCount());
+      if (record.subscribedPopulation <= 0)
+        retireSubscription(record);
     }
     else if (ttx.isRegulation()) {
       // Regulation transaction -- we record it as production/consumption
@@ -369,31 +731,63 @@ implements PortfolioManager, Initializable, Activatable
    */
   public synchronized void handleMessage (TariffRevoke tr)
   {
-    addPendingMessage("TariffRevoke", tr);
+    addPendingMessage(tr);
     Broker source = tr.getBroker();
     log.info("Revoke tariff " + tr.getTariffId()
              + " from " + tr.getBroker().getUsername());
+    // nobody can be subscribed to it any more
+    int tariffSlot = tariffIndex.find(tr.getTariffId());
+    if (tariffSlot >= 0 && null != customerSubscriptions[tariffSlot]) {
+      for (CustomerRecord record : customerSubscriptions[tariffSlot]) {
+        if (null != record)
+          retireSubscription(record);
+      }
+    }
     // if it's from some other broker, we need to remove it from the
-    // tariffRepo, and from the competingTariffs list
+    // competingTariffs registry, and from the tariffRepo
     if (!(source.getUsername().equals(brokerContext.getBrokerUsername()))) {
       log.info("clear out competing tariff");
       TariffSpecification original =
-              tariffRepo.findSpecificationById(tr.getTariffId());
+              competingTariffs.revoke(tr.getTariffId(),
+                                      timeslotRepo.currentSerialNumber());
       if (null == original) {
         log.warn("Original tariff " + tr.getTariffId() + " not found");
         return;
       }
       tariffRepo.removeSpecification(original.getId());
-      List<TariffSpecification> candidates =
-              competingTariffs.get(original.getPowerType());
-      if (null == candidates) {
-        log.warn("Candidate list is null");
-        return;
-      }
-      candidates.remove(original);
     }
   }
 
+  /**
+   * Handles a WeatherReport, for the temperature term of the usage
+   * forecasts. The ContextManager buffers these for Python.
+   */
+  public synchronized void handleMessage (WeatherReport report)
+  {
+    forecaster.setTemperature(report.getTimeslotIndex(),
+                              report.getTemperature(), true);
+  }
+
+  /**
+   * Handles a WeatherForecast, for the temperatures of the timeslots ahead.
+   */
+  public synchronized void handleMessage (WeatherForecast forecast)
+  {
+    for (WeatherForecastPrediction prediction : forecast.getPredictions())
+      forecaster.setTemperature(forecast.getTimeslotIndex()
+                                + prediction.getForecastTime(),
+                                prediction.getTemperature(), false);
+  }
+
+  /**
+   * Handles SimEnd by saving the warm-start file, if there is one.
+   */
+  public synchronized void handleMessage (SimEnd se)
+  {
+    if (null != warmStartFile && !warmStartFile.isEmpty())
+      saveWarmStart(warmStartFile);
+  }
+
   /**
    * Handles a BalancingControlEvent, sent when a BalancingOrder is
    * exercised by the DU.
@@ -404,17 +798,9 @@ implements PortfolioManager, Initializable, Activatable
   }
 
   // Adds a message to the correct pendingMessage list
-  private void addPendingMessage (String type, Object msg)
+  private void addPendingMessage (Object msg)
   {
-    if (null == pendingMessages) {
-      pendingMessages = new HashMap<String, List<Object>>();
-    }
-    List<Object> msgs = pendingMessages.get(type);
-    if (null == msgs) {
-      msgs = new ArrayList<Object>();
-      pendingMessages.put(type, msgs);
-    }
-    msgs.add(msg);
+    messages.add(msg);
   }
 
   /**
@@ -422,13 +808,293 @@ implements PortfolioManager, Initializable, Activatable
    */
   public Map<String, List<Object>> getPendingMessageLists ()
   {
-    // Clean up old messages
-    log.info("getPortfolioMessages {}", (pendingMessages != null) ? pendingMessages.size(): 0);
-    Map<String, List<Object>> result = pendingMessages;
-    pendingMessages = null;
+    Map<String, List<Object>> result = messages.drain();
+    log.info("getPortfolioMessages {}", result.size());
+    return result;
+  }
+
+  // Envoy installs Python's subscription here
+  MessageStore getMessageStore ()
+  {
+    return messages;
+  }
+
+  /**
+   * Retrieves pending messages for the current timeslot in columnar form,
+   * one packed byte[] per message type (see {@link MessageColumns}). Types
+   * that have no columnar layout are left in place for
+   * getPendingMessageLists().
+   */
+  public Map<String, byte[]> getPendingMessageColumns ()
+  {
+    Map<String, byte[]> result =
+        MessageColumns.extract(messages.drain(MessageColumns::hasLayout),
+                               messages.getSubscription());
+    log.info("getPortfolioColumns {}", result.size());
     return result;
   }
   
+  /**
+   * Returns the usage of every subscription record (usage per customer times
+   * subscribed population, by usage index) packed as one buffer: int32 row
+   * count, int32 column count, then the rows as little-endian float64.
+   * Rows are in the order of getPortfolioUsageKeys().
+   */
+  public synchronized byte[] getPortfolioUsage ()
+  {
+    List<CustomerRecord> records = subscriptionRecords();
+    int[] rows = new int[records.size()];
+    double[] scales = new double[records.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = records.get(i).row;
+      scales[i] = records.get(i).subscribedPopulation;
+    }
+    return usageMatrix.pack(rows, scales);
+  }
+
+  /**
+   * Identifies the rows of getPortfolioUsage(), as "tariffId/customerName".
+   */
+  public synchronized List<String> getPortfolioUsageKeys ()
+  {
+    List<String> result = new ArrayList<>();
+    for (CustomerRecord record : subscriptionRecords())
+      result.add(tariffs[record.tariffSlot].getId() + "/"
+                 + record.customer.getName());
+    return result;
+  }
+
+  /**
+   * Identifies the rows of getPortfolioUsage() by slot, as pairs of
+   * (tariff slot, customer slot).
+   */
+  public synchronized int[] getPortfolioUsageSlots ()
+  {
+    List<CustomerRecord> records = subscriptionRecords();
+    int[] result = new int[records.size() * 2];
+    for (int i = 0; i < records.size(); i++) {
+      result[2 * i] = records.get(i).tariffSlot;
+      result[2 * i + 1] = records.get(i).customerSlot;
+    }
+    return result;
+  }
+
+  // Subscription records in order of tariff slot, then customer slot
+  private List<CustomerRecord> subscriptionRecords ()
+  {
+    List<CustomerRecord> result = new ArrayList<>();
+    for (int t = 0; t < tariffIndex.size(); t++) {
+      CustomerRecord[] records = customerSubscriptions[t];
+      if (null == records)
+        continue;
+      for (CustomerRecord record : records) {
+        if (null != record)
+          result.add(record);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Estimates the weekly cost of each of the given tariffs for every
+   * customer, using the customers' usage profiles for the tariff's power type
+   * (see {@link TariffEvaluator}). The result is packed like
+   * getPortfolioUsage(), with one row per tariff and one column per customer
+   * slot. Costs are NaN for unknown tariffs and for customers with no
+   * profile of the tariff's power type.
+   */
+  public synchronized byte[] evaluateTariffs (long[] tariffIds)
+  {
+    int customerCount = customerIndex.size();
+    TariffSpecification[] specs = new TariffSpecification[tariffIds.length];
+    int[][] rows = new int[tariffIds.length][customerCount];
+    for (int t = 0; t < tariffIds.length; t++) {
+      Arrays.fill(rows[t], -1);
+      specs[t] = tariffRepo.findSpecificationById(tariffIds[t]);
+      if (null == specs[t]) {
+        log.warn("evaluateTariffs: unknown tariff {}", tariffIds[t]);
+        continue;
+      }
+      CustomerRecord[] records = customerProfiles.get(specs[t].getPowerType());
+      for (int c = 0; null != records && c < records.length && c < customerCount; c++) {
+        if (null != records[c])
+          rows[t][c] = records[c].row;
+      }
+    }
+    double[] costs =
+        tariffEvaluator.evaluate(specs, rows, usageMatrix, hourOfWeek(0));
+    return TariffEvaluator.pack(costs, tariffIds.length, customerCount);
+  }
+
+  // --------------- slot access -----------------
+  // Customers and tariffs are numbered 0, 1, 2, ... in order of arrival,
+  // so Python can keep its own per-customer and per-tariff data in arrays.
+
+  /**
+   * Returns the slot of the customer with the given id, or -1 if it has none.
+   */
+  public synchronized int getCustomerSlot (long customerId)
+  {
+    return customerIndex.find(customerId);
+  }
+
+  /**
+   * Returns the slot of the tariff with the given id, or -1 if it has none.
+   */
+  public synchronized int getTariffSlot (long tariffId)
+  {
+    return tariffIndex.find(tariffId);
+  }
+
+  /**
+   * Customer ids, indexed by slot.
+   */
+  public synchronized long[] getCustomerIds ()
+  {
+    return customerIndex.getIds();
+  }
+
+  /**
+   * Customer names, indexed by slot.
+   */
+  public synchronized String[] getCustomerNames ()
+  {
+    String[] result = new String[customerIndex.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = customers[i].getName();
+    return result;
+  }
+
+  /**
+   * Tariff ids, indexed by slot.
+   */
+  public synchronized long[] getTariffIds ()
+  {
+    return tariffIndex.getIds();
+  }
+
+  /**
+   * Subscribed population of the given tariff, indexed by customer slot.
+   */
+  public synchronized int[] getSubscribedPopulations (int tariffSlot)
+  {
+    int[] result = new int[customerIndex.size()];
+    if (tariffSlot < 0 || tariffSlot >= tariffIndex.size()) {
+      log.warn("getSubscribedPopulations: bad tariff slot {}", tariffSlot);
+      return result;
+    }
+    CustomerRecord[] records = customerSubscriptions[tariffSlot];
+    for (int i = 0; null != records && i < records.length; i++) {
+      if (null != records[i])
+        result[i] = records[i].subscribedPopulation;
+    }
+    return result;
+  }
+
+  /**
+   * Usage of the given customer on the given tariff at the given index,
+   * zero if the customer has never been subscribed to it.
+   */
+  public synchronized double getUsage (int tariffSlot, int customerSlot,
+                                       int index)
+  {
+    if (tariffSlot < 0 || tariffSlot >= tariffIndex.size()
+        || customerSlot < 0 || customerSlot >= customerIndex.size()) {
+      log.warn("getUsage: bad slots {}, {}", tariffSlot, customerSlot);
+      return 0.0;
+    }
+    CustomerRecord[] records = customerSubscriptions[tariffSlot];
+    if (null == records || customerSlot >= records.length
+        || null == records[customerSlot])
+      return 0.0;
+    return records[customerSlot].getUsage(index);
+  }
+
+  // --------------- tariff submission -----------------
+  /**
+   * Builds, records and sends a batch of simple tariffs described by
+   * parallel arrays: one fixed rate per tariff, plus periodic payment,
+   * minimum duration, signup payment and early-withdrawal payment. Power
+   * types are given by name, for example "CONSUMPTION". Each new
+   * specification is added to the TariffRepo before it is sent. Returns the
+   * ids of the new tariffs.
+   */
+  public synchronized long[] submitTariffs (String[] powerTypes,
+                                            double[] rateValues,
+                                            double[] periodicPayments,
+                                            long[] minDurations,
+                                            double[] signupPayments,
+                                            double[] earlyWithdrawPayments)
+  {
+    int count = powerTypes.length;
+    if (rateValues.length != count || periodicPayments.length != count
+        || minDurations.length != count || signupPayments.length != count
+        || earlyWithdrawPayments.length != count) {
+      log.error("submitTariffs: array lengths do not match");
+      return new long[0];
+    }
+    long[] result = new long[count];
+    for (int i = 0; i < count; i++) {
+      TariffSpecification spec =
+          new TariffSpecification(brokerContext.getBroker(),
+                                  PowerType.valueOf(powerTypes[i]))
+              .withPeriodicPayment(periodicPayments[i])
+              .withMinDuration(minDurations[i])
+              .withSignupPayment(signupPayments[i])
+              .withEarlyWithdrawPayment(earlyWithdrawPayments[i]);
+      spec.addRate(new Rate().withValue(rateValues[i]));
+      tariffRepo.addSpecification(spec);
+      tariffSlot(spec);
+      brokerContext.sendMessage(spec);
+      result[i] = spec.getId();
+    }
+    log.info("submitted {} tariffs", count);
+    return result;
+  }
+
+  /**
+   * Short form of submitTariffs() for tariffs with just a rate and a
+   * periodic payment.
+   */
+  public long[] submitTariffs (String[] powerTypes, double[] rateValues,
+                               double[] periodicPayments)
+  {
+    int count = powerTypes.length;
+    return submitTariffs(powerTypes, rateValues, periodicPayments,
+                         new long[count], new double[count], new double[count]);
+  }
+
+  /**
+   * Builds, records and sends a batch of balancing orders for our own
+   * tariffs, given by id. Returns the number of orders sent; orders for
+   * unknown tariffs are skipped.
+   */
+  public synchronized int submitBalancingOrders (long[] tariffIds,
+                                                 double[] exerciseRatios,
+                                                 double[] prices)
+  {
+    if (tariffIds.length != exerciseRatios.length || tariffIds.length != prices.length) {
+      log.error("submitBalancingOrders: array lengths do not match");
+      return 0;
+    }
+    int count = 0;
+    for (int i = 0; i < tariffIds.length; i++) {
+      TariffSpecification spec = tariffRepo.findSpecificationById(tariffIds[i]);
+      if (null == spec) {
+        log.warn("Balancing order for unknown tariff {}", tariffIds[i]);
+        continue;
+      }
+      BalancingOrder order =
+          new BalancingOrder(brokerContext.getBroker(), spec,
+                             exerciseRatios[i], prices[i]);
+      tariffRepo.addBalancingOrder(order);
+      brokerContext.sendMessage(order);
+      count += 1;
+    }
+    log.info("submitted {} balancing orders", count);
+    return count;
+  }
+
   // --------------- activation -----------------
   /**
    * Called after TimeslotComplete msg received. Note that activation order
@@ -437,9 +1103,27 @@ implements PortfolioManager, Initializable, Activatable
   @Override // from Activatable
   public synchronized void activate (int timeslotIndex)
   {
-    // This is where we respond to the next-timeslot request by notifying waiting threads
-    for (CustomerRecord record: notifyOnActivation)
-      record.activate();
+    // Bootstrap data from customers that never completed the set
+    if (!isPortfolioReady() || !pendingBootstrap.isEmpty())
+      processBootstrap();
+    // This is where we respond to the next-timeslot request by notifying waiting threads.
+    // The deferred usage of the records that saw usage in this timeslot is
+    // smoothed as one batch.
+    smoothing.clear();
+    int count = 0;
+    for (CustomerRecord record: dirtyRecords) {
+      if (!record.retired)
+        dirtyRecords.set(count++, record);
+      else
+        record.dirty = false;
+    }
+    dirtyRecords.subList(count, dirtyRecords.size()).clear();
+    for (CustomerRecord record: dirtyRecords)
+      record.gatherDeferred(smoothing);
+    smoothing.compute();
+    for (int i = 0; i < dirtyRecords.size(); i++)
+      dirtyRecords.get(i).scatterDeferred(smoothing, i);
+    dirtyRecords.clear();
   }
 
   // ------------- access to Spring services ------------------
@@ -466,10 +1150,14 @@ implements PortfolioManager, Initializable, Activatable
   HashMap<PowerType, double[]> getRawUsageForCustomer (CustomerInfo customer)
   {
     HashMap<PowerType, double[]> result = new HashMap<>();
+    int slot = customerIndex.find(customer.getId());
+    if (slot < 0)
+      return result;
     for (PowerType type : customerProfiles.keySet()) {
-      CustomerRecord record = customerProfiles.get(type).get(customer);
+      CustomerRecord[] records = customerProfiles.get(type);
+      CustomerRecord record = (slot < records.length) ? records[slot] : null;
       if (record != null) {
-        result.put(type, record.usage);
+        result.put(type, usageMatrix.getRow(record.row));
       }
     }
     return result;
@@ -479,12 +1167,10 @@ implements PortfolioManager, Initializable, Activatable
   HashMap<String, Integer> getCustomerCounts()
   {
     HashMap<String, Integer> result = new HashMap<>();
-    for (TariffSpecification spec : customerSubscriptions.keySet()) {
-      Map<CustomerInfo, CustomerRecord> customerMap = customerSubscriptions.get(spec);
-      for (CustomerRecord record : customerMap.values()) {
-        result.put(record.customer.getName() + spec.getPowerType(), 
-                    record.subscribedPopulation);
-      }
+    for (CustomerRecord record : subscriptionRecords()) {
+      result.put(record.customer.getName()
+                 + tariffs[record.tariffSlot].getPowerType(),
+                 record.subscribedPopulation);
     }
     return result;
   }
@@ -494,15 +1180,22 @@ implements PortfolioManager, Initializable, Activatable
    * Keeps track of customer status and usage. Usage is stored
    * per-customer-unit, but reported as the product of the per-customer
    * quantity and the subscribed population. This allows the broker to use
-   * historical usage data as the subscribed population shifts.
+   * historical usage data as the subscribed population shifts. The usage
+   * profile itself is a row of the usageMatrix.
    */
   class CustomerRecord
   {
     CustomerInfo customer;
+    int customerSlot;
+    int tariffSlot = -1; // for subscription records
+    int model = -1; // forecasting model, for subscription records
     int subscribedPopulation = 0;
-    double[] usage;
+    int row;
+    boolean counted = false; // included in usageTotals
     double alpha = 0.3;
     boolean deferredActivation = false;
+    boolean dirty = false; // in dirtyRecords
+    boolean retired = false; // no longer held by the portfolio
     double deferredUsage = 0.0;
     int savedIndex = 0;
 
@@ -513,14 +1206,16 @@ implements PortfolioManager, Initializable, Activatable
     {
       super();
       this.customer = customer;
-      this.usage = new double[brokerContext.getUsageRecordLength()];
+      this.customerSlot = customerSlot(customer);
+      this.row = usageMatrix.allocate();
     }
 
     CustomerRecord (CustomerRecord oldRecord)
     {
       super();
       this.customer = oldRecord.customer;
-      this.usage = Arrays.copyOf(oldRecord.usage, brokerContext.getUsageRecordLength());
+      this.customerSlot = oldRecord.customerSlot;
+      this.row = usageMatrix.share(oldRecord.row); // copied on first write
     }
 
     // Returns the CustomerInfo for this record
@@ -532,21 +1227,30 @@ implements PortfolioManager, Initializable, Activatable
     // Adds new individuals to the count
     void signup (int population)
     {
-      subscribedPopulation = Math.min(customer.getPopulation(),
-                                      subscribedPopulation + population);
+      setPopulation(Math.min(customer.getPopulation(),
+                             subscribedPopulation + population));
     }
 
     // Removes individuals from the count
     void withdraw (int population)
     {
-      subscribedPopulation -= population;
+      setPopulation(subscribedPopulation - population);
+    }
+
+    private void setPopulation (int population)
+    {
+      if (counted) {
+        int change = population - subscribedPopulation;
+        for (int i = 0; i < usageTotals.length; i++)
+          usageTotals[i] += usageMatrix.get(row, i) * change;
+      }
+      subscribedPopulation = population;
     }
 
     // Sets up deferred activation
     void setDeferredActivation ()
     {
       deferredActivation = true;
-      notifyOnActivation.add(this);
     }
 
     // Customer produces or consumes power. We assume the kwh value is negative
@@ -563,17 +1267,33 @@ implements PortfolioManager, Initializable, Activatable
       if (deferredActivation) {
         deferredUsage += kwh;
         savedIndex = rawIndex;
+        if (!dirty) {
+          dirty = true;
+          dirtyRecords.add(this);
+        }
       }
       else
         localProduceConsume(kwh, rawIndex);
     }
 
-    // processes deferred recording to accomodate regulation
-    void activate ()
+    // processes deferred recording to accomodate regulation, in two steps:
+    // adds the deferred usage to a smoothing batch,
+    void gatherDeferred (SmoothingBatch batch)
+    {
+      row = usageMatrix.writable(row);
+      batch.add(deferredUsage, subscribedPopulation, alpha,
+                usageMatrix.get(row, getIndex(savedIndex)));
+    }
+
+    // then stores the smoothed result
+    void scatterDeferred (SmoothingBatch batch, int position)
     {
-      //PortfolioManagerService.log.info("activate {}", customer.getName());
-      localProduceConsume(deferredUsage, savedIndex);
+      storeUsage(getIndex(savedIndex),
+                 batch.getOldUsage(position), batch.getNewUsage(position));
+      if (subscribedPopulation > 0)
+        observe(savedIndex, deferredUsage / subscribedPopulation);
       deferredUsage = 0.0;
+      dirty = false;
     }
 
     private void localProduceConsume (double kwh, int rawIndex)
@@ -583,25 +1303,39 @@ implements PortfolioManager, Initializable, Activatable
       if (subscribedPopulation > 0) {
         kwhPerCustomer = kwh / (double)subscribedPopulation;
       }
-      double oldUsage = usage[index];
-      if (oldUsage == 0.0) {
-        // assume this is the first time
-        usage[index] = kwhPerCustomer;
-      }
-      else {
-        // exponential smoothing
-        usage[index] = alpha * kwhPerCustomer + (1.0 - alpha) * oldUsage;
-      }
+      double oldUsage = usageMatrix.get(row, index);
+      // exponential smoothing, or the first value if there is none yet
+      double newUsage =
+          SmoothingBatch.smooth(kwh, subscribedPopulation, alpha, oldUsage);
+      storeUsage(index, oldUsage, newUsage);
+      if (subscribedPopulation > 0)
+        observe(rawIndex, kwhPerCustomer);
       //PortfolioManagerService.log.debug("consume {} at {}, customer {}", kwh, index, customer.getName());
     }
 
+    private void storeUsage (int index, double oldUsage, double newUsage)
+    {
+      row = usageMatrix.writable(row);
+      usageMatrix.set(row, index, newUsage);
+      if (counted)
+        usageTotals[index] += (newUsage - oldUsage) * subscribedPopulation;
+    }
+
+    // feeds the forecasting model, if this record has one
+    private void observe (int timeslot, double kwhPerCustomer)
+    {
+      if (model >= 0)
+        forecaster.observe(model, timeslot, hourOfWeek(timeslot),
+                           kwhPerCustomer);
+    }
+
     double getUsage (int index)
     {
       if (index < 0) {
         PortfolioManagerService.log.warn("usage requested for negative index " + index);
         index = 0;
       }
-      return (usage[getIndex(index)] * (double)subscribedPopulation);
+      return (usageMatrix.get(row, getIndex(index)) * (double)subscribedPopulation);
     }
 
     // we assume here that timeslot index always matches the number of
@@ -613,9 +1347,9 @@ implements PortfolioManager, Initializable, Activatable
       return result;
     }
 
-    private int getIndex (int rawIndex)
+    int getIndex (int rawIndex)
     {
-      return rawIndex % usage.length;
+      return rawIndex % usageMatrix.getColumns();
     }
   }
 }
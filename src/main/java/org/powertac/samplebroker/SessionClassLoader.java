@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Child-first class loader that gives each broker session its own copy of
+ * the broker and Power TAC classes. The broker core keeps a good deal of
+ * state in static fields (the Spring context in BrokerRunner, the current
+ * Competition, the IdGenerator prefix, the Envoy instance), so sessions that
+ * share classes would also share that state. Platform classes, Py4J, the
+ * logging framework and the types that cross between sessions and the
+ * gateway are loaded parent-first so they are shared.
+ *
+ * @author John Collins
+ */
+class SessionClassLoader extends URLClassLoader
+{
+  static private Logger log = LogManager.getLogger(SessionClassLoader.class);
+
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  private static final String[] SHARED = {
+    "java.", "javax.", "jdk.", "sun.", "com.sun.",
+    "py4j.", "org.apache.logging.log4j.", "org.slf4j.",
+    "org.powertac.samplebroker.TimeslotSnapshot",
+    "org.powertac.samplebroker.interfaces.TimeslotListener"
+  };
+
+  SessionClassLoader (ClassLoader parent)
+  {
+    super(classpath(), parent);
+  }
+
+  @Override
+  protected Class<?> loadClass (String name, boolean resolve)
+      throws ClassNotFoundException
+  {
+    if (isShared(name))
+      return super.loadClass(name, resolve);
+    synchronized(getClassLoadingLock(name)) {
+      Class<?> result = findLoadedClass(name);
+      if (null == result) {
+        try {
+          result = findClass(name);
+        } catch (ClassNotFoundException cnf) {
+          return super.loadClass(name, resolve);
+        }
+      }
+      if (resolve)
+        resolveClass(result);
+      return result;
+    }
+  }
+
+  private static boolean isShared (String name)
+  {
+    for (String prefix : SHARED) {
+      if (name.startsWith(prefix))
+        return true;
+    }
+    return false;
+  }
+
+  // The JVM classpath, as URLs
+  private static URL[] classpath ()
+  {
+    List<URL> result = new ArrayList<>();
+    for (String entry : System.getProperty("java.class.path")
+        .split(File.pathSeparator)) {
+      if (entry.isEmpty())
+        continue;
+      try {
+        result.add(new File(entry).toURI().toURL());
+      } catch (MalformedURLException mue) {
+        log.error("Bad classpath entry {}", entry);
+      }
+    }
+    return result.toArray(new URL[0]);
+  }
+}
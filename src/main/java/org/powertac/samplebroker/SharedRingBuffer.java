@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Memory-mapped ring buffer used to hand each timeslot's columnar messages
+ * to the Python process without going through the Py4J socket. Py4J remains
+ * the control channel; once waitForTimeslotComplete() returns, the frame for
+ * that timeslot has already been committed here.
+ *
+ * File layout, all values little-endian:
+ * <pre>
+ *   header (64 bytes)
+ *     0  int32 magic 'PTRB'
+ *     4  int32 version
+ *     8  int64 capacity, size of the data region in bytes
+ *    16  int64 committed sequence number, 0 before the first frame
+ *    24  int64 file offset of the last committed frame
+ *    32  int64 oldest sequence number whose frame is still intact
+ *   frames, 8-byte aligned, starting at offset 64
+ *     int64 sequence number, negated while the frame is being written
+ *     int32 timeslot
+ *     int32 entry count
+ *     int32 frame length in bytes, including this header
+ *     int32 padding
+ *     entries: int16 type name length, type name, int32 payload length,
+ *              payload in MessageColumns format
+ * </pre>
+ * The committed sequence and offset are written last, with release
+ * semantics, so they act as the commit marker. A reader that copies a frame
+ * out should re-read the oldest sequence afterwards; if it has passed the
+ * frame's sequence number, the writer lapped the reader and the copy must be
+ * discarded.
+ *
+ * @author John Collins
+ */
+public class SharedRingBuffer implements Closeable
+{
+  static private Logger log = LogManager.getLogger(SharedRingBuffer.class);
+
+  static final int MAGIC = 0x42525450; // "PTRB" in little-endian byte order
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int FRAME_HEADER_SIZE = 24;
+
+  static final int COMMITTED_SEQUENCE = 16;
+  static final int COMMITTED_OFFSET = 24;
+  static final int OLDEST_SEQUENCE = 32;
+
+  private static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final Path path;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int limit;
+
+  private long sequence = 0l;
+  private int writePosition = HEADER_SIZE;
+
+  // live frames, oldest first, as {sequence, start, end}
+  private final ArrayDeque<long[]> frames = new ArrayDeque<>();
+
+  /**
+   * Creates (or truncates) the file at the given path and maps a data region
+   * of the given size.
+   */
+  public SharedRingBuffer (Path path, int capacity) throws IOException
+  {
+    super();
+    this.path = path;
+    this.limit = HEADER_SIZE + align(capacity);
+    channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                               StandardOpenOption.READ, StandardOpenOption.WRITE,
+                               StandardOpenOption.TRUNCATE_EXISTING);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, limit);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putLong(8, limit - HEADER_SIZE);
+    buffer.putLong(OLDEST_SEQUENCE, 1l);
+    LONGS.setRelease(buffer, COMMITTED_OFFSET, 0l);
+    LONGS.setRelease(buffer, COMMITTED_SEQUENCE, 0l);
+    log.info("Shared transport {} mapped, {} bytes", path, limit);
+  }
+
+  public Path getPath ()
+  {
+    return path;
+  }
+
+  /**
+   * Returns the sequence number of the last committed frame.
+   */
+  public synchronized long getSequence ()
+  {
+    return sequence;
+  }
+
+  /**
+   * Writes one frame holding the given packed message types, and commits it.
+   * Returns the new sequence number, or -1 if the frame is too large for
+   * the buffer.
+   */
+  public synchronized long publish (int timeslot, Map<String, byte[]> entries)
+  {
+    int length = FRAME_HEADER_SIZE;
+    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      length += 2 + entry.getKey().getBytes(StandardCharsets.UTF_8).length
+          + 4 + entry.getValue().length;
+    }
+    length = align(length);
+    if (length > limit - HEADER_SIZE) {
+      log.error("Frame for timeslot {} needs {} bytes, ring holds {}",
+                timeslot, length, limit - HEADER_SIZE);
+      return -1l;
+    }
+    int start = writePosition;
+    if (start + length > limit) {
+      // not enough room at the end. The frames from here to the end of the
+      // ring are the oldest ones, left from the last lap, and newer frames
+      // are about to be overwritten, so retire them; then leave a wrap
+      // marker and start over
+      while (!frames.isEmpty() && frames.peekFirst()[1] >= start)
+        frames.removeFirst();
+      if (limit - start >= 8)
+        buffer.putLong(start, 0l);
+      start = HEADER_SIZE;
+    }
+    int end = start + length;
+    long seq = sequence + 1;
+
+    // retire the frames we are about to overwrite before touching them
+    while (!frames.isEmpty()
+        && frames.peekFirst()[1] < end && frames.peekFirst()[2] > start) {
+      frames.removeFirst();
+    }
+    long oldest = frames.isEmpty() ? seq : frames.peekFirst()[0];
+    LONGS.setRelease(buffer, OLDEST_SEQUENCE, oldest);
+
+    buffer.putLong(start, -seq);
+    buffer.putInt(start + 8, timeslot);
+    buffer.putInt(start + 12, entries.size());
+    buffer.putInt(start + 16, length);
+    buffer.putInt(start + 20, 0);
+    ByteBuffer out = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    out.position(start + FRAME_HEADER_SIZE);
+    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+      byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      out.putShort((short) name.length);
+      out.put(name);
+      out.putInt(entry.getValue().length);
+      out.put(entry.getValue());
+    }
+
+    // commit
+    LONGS.setRelease(buffer, start, seq);
+    LONGS.setRelease(buffer, COMMITTED_OFFSET, (long) start);
+    LONGS.setRelease(buffer, COMMITTED_SEQUENCE, seq);
+    frames.addLast(new long[] {seq, start, end});
+    sequence = seq;
+    writePosition = end;
+    return seq;
+  }
+
+  @Override
+  public synchronized void close () throws IOException
+  {
+    buffer.force();
+    channel.close();
+  }
+
+  private static int align (int size)
+  {
+    return (size + 7) & ~7;
+  }
+}
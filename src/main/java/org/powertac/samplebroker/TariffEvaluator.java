@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+
+/**
+ * Estimates what customers would pay under a set of tariffs over a week.
+ * Each tariff's rates are expanded once into a table of 168 hourly prices,
+ * hour 0 being Monday 00:00 UTC, and the table is cached by tariff id. A
+ * customer's weekly cost under a tariff is then
+ * sum over h of usage(h) * price(h), plus seven days of periodic payment,
+ * where usage is the per-customer usage profile from the usage matrix. The
+ * tariffs x customers costs are computed in parallel on the common
+ * fork-join pool.
+ *
+ * Where several rates apply in the same hour, the one with the lowest tier
+ * threshold is used, and among those the one with the narrowest time window;
+ * higher tiers are ignored. Variable rates are priced at their expected mean.
+ *
+ * @author John Collins
+ */
+public class TariffEvaluator
+{
+  public static final int HOURS = 168;
+
+  private final IdIndex index = new IdIndex();
+  private double[][] tables = new double[64][];
+
+  public TariffEvaluator ()
+  {
+    super();
+  }
+
+  /**
+   * Returns the hourly price table of the given tariff, expanding and
+   * caching it the first time.
+   */
+  public synchronized double[] getPriceTable (TariffSpecification spec)
+  {
+    int slot = index.add(spec.getId());
+    if (slot == tables.length)
+      tables = Arrays.copyOf(tables, slot * 2);
+    if (null == tables[slot])
+      tables[slot] = expand(spec);
+    return tables[slot];
+  }
+
+  /**
+   * Number of cached price tables.
+   */
+  public synchronized int size ()
+  {
+    return index.size();
+  }
+
+  /**
+   * Returns the weekly cost of each tariff for each customer, as a
+   * tariffs x customers matrix in row-major order. rows[t][c] is the usage
+   * matrix row holding customer c's profile for tariff t, or -1 if there is
+   * none, in which case the cost is NaN; so is every cost of a null tariff.
+   * firstHour is the hour of the week
+   * of usage column 0. Profiles that do not span a week are scaled up to
+   * one.
+   */
+  public double[] evaluate (TariffSpecification[] tariffs, int[][] rows,
+                            UsageMatrix usage, int firstHour)
+  {
+    int customers = (tariffs.length == 0) ? 0 : rows[0].length;
+    double[][] prices = new double[tariffs.length][];
+    double[] periodic = new double[tariffs.length];
+    for (int t = 0; t < tariffs.length; t++) {
+      if (null == tariffs[t])
+        continue;
+      prices[t] = getPriceTable(tariffs[t]);
+      periodic[t] = tariffs[t].getPeriodicPayment() * 7.0;
+    }
+    int columns = usage.getColumns();
+    double scale = (double) HOURS / columns;
+    double[] result = new double[tariffs.length * customers];
+    IntStream.range(0, result.length).parallel().forEach(k -> {
+      int t = k / customers;
+      int row = rows[t][k % customers];
+      if (row < 0 || null == prices[t]) {
+        result[k] = Double.NaN;
+        return;
+      }
+      double[] price = prices[t];
+      double sum = 0.0;
+      for (int c = 0; c < columns; c++)
+        sum += usage.get(row, c) * price[(firstHour + c) % HOURS];
+      result[k] = sum * scale + periodic[t];
+    });
+    return result;
+  }
+
+  /**
+   * Packs a row-major matrix in the format of UsageMatrix.pack(): int32 row
+   * count, int32 column count, then the values as little-endian float64.
+   */
+  public static byte[] pack (double[] matrix, int rows, int columns)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(8 + matrix.length * 8)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(rows);
+    buffer.putInt(columns);
+    for (double value : matrix)
+      buffer.putDouble(value);
+    return buffer.array();
+  }
+
+  // Expands a tariff's rates into hourly prices
+  static double[] expand (TariffSpecification spec)
+  {
+    double[] table = new double[HOURS];
+    double[] tier = new double[HOURS];
+    int[] span = new int[HOURS];
+    Arrays.fill(tier, Double.POSITIVE_INFINITY);
+    for (Rate rate : spec.getRates()) {
+      double value = rate.isFixed() ? rate.getMinValue() : rate.getExpectedMean();
+      double threshold = Math.abs(rate.getTierThreshold());
+      int hours = 0;
+      for (int h = 0; h < HOURS; h++) {
+        if (applies(rate, h))
+          hours += 1;
+      }
+      for (int h = 0; h < HOURS; h++) {
+        if (!applies(rate, h))
+          continue;
+        if (threshold < tier[h] || (threshold == tier[h] && hours <= span[h])) {
+          table[h] = value;
+          tier[h] = threshold;
+          span[h] = hours;
+        }
+      }
+    }
+    return table;
+  }
+
+  // Same test as Rate.applies(), for an hour of the week. Days run from
+  // Monday = 1, and the daily and weekly ranges are inclusive and may wrap;
+  // like the server, a daily range that begins and ends at the same hour
+  // covers the whole day.
+  static boolean applies (Rate rate, int hourOfWeek)
+  {
+    int day = hourOfWeek / 24 + 1;
+    int hour = hourOfWeek % 24;
+    return inRange(rate.getWeeklyBegin(), rate.getWeeklyEnd(), day, true)
+        && inRange(rate.getDailyBegin(), rate.getDailyEnd(), hour, false);
+  }
+
+  private static boolean inRange (int begin, int end, int value,
+                                  boolean singleAllowed)
+  {
+    if (begin == Rate.NO_TIME || end == Rate.NO_TIME)
+      return true;
+    if (end > begin || (singleAllowed && end == begin))
+      return value >= begin && value <= end;
+    return value >= begin || value <= end;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import org.powertac.common.Competition;
+import org.powertac.common.TimeService;
+
+/**
+ * Works out, from the simulation clock, how much wall-clock time is left
+ * before the server moves on to the next timeslot and clears the wholesale
+ * market. The clock maps wall time w to simulation time
+ * base + (w - start) * rate, and timeslots begin at multiples of the
+ * competition's timeslot duration after base.
+ *
+ * @author John Collins
+ */
+public class TimeslotDeadline
+{
+  private final TimeService timeService;
+
+  public TimeslotDeadline (TimeService timeService)
+  {
+    super();
+    this.timeService = timeService;
+  }
+
+  /**
+   * Wall-clock length of a timeslot in msec, or -1 before the competition
+   * and clock parameters are known.
+   */
+  public long getTimeslotMillis ()
+  {
+    Competition comp = Competition.currentCompetition();
+    if (null == comp || timeService.getRate() <= 0l)
+      return -1l;
+    return comp.getTimeslotDuration() / timeService.getRate();
+  }
+
+  /**
+   * Wall-clock msec until the current timeslot ends, or -1 if the clock is
+   * not running.
+   */
+  public long getRemainingMillis ()
+  {
+    return getRemainingMillis(System.currentTimeMillis());
+  }
+
+  long getRemainingMillis (long wallTime)
+  {
+    Competition comp = Competition.currentCompetition();
+    long rate = timeService.getRate();
+    long start = timeService.getStart();
+    if (null == comp || rate <= 0l || start <= 0l)
+      return -1l;
+    long duration = comp.getTimeslotDuration();
+    long elapsed = (wallTime - start) * rate; // simulation msec since base
+    if (elapsed < 0l)
+      return -1l;
+    long intoSlot = elapsed % duration;
+    return (duration - intoSlot) / rate;
+  }
+
+  /**
+   * Wall-clock msec from now until the given fraction of the current
+   * timeslot has elapsed; zero if that point is already past, -1 if the
+   * clock is not running.
+   */
+  public long getMillisUntil (double fraction)
+  {
+    long remaining = getRemainingMillis();
+    long length = getTimeslotMillis();
+    if (remaining < 0l || length <= 0l)
+      return -1l;
+    return Math.max(0l, remaining - Math.round((1.0 - fraction) * length));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of everything the three services buffered for Python up to
+ * the end of a timeslot. Snapshots are captured on TimeslotComplete, so all
+ * the messages in a snapshot belong to the same timeslot, unless Python
+ * fell behind, in which case the unclaimed snapshots are merged and
+ * getFirstTimeslot() is less than getTimeslot().
+ *
+ * This class is shared by all sessions in the JVM (see SessionClassLoader),
+ * so its constructor and append() are public.
+ *
+ * @author John Collins
+ */
+public final class TimeslotSnapshot
+{
+  private final int timeslot;
+  private final int firstTimeslot;
+  private final boolean ended;
+  private final Map<String, List<Object>> contextMessages;
+  private final Map<String, List<Object>> portfolioMessages;
+  private final Map<String, List<Object>> marketMessages;
+
+  public TimeslotSnapshot (int timeslot, boolean ended,
+                           Map<String, List<Object>> context,
+                           Map<String, List<Object>> portfolio,
+                           Map<String, List<Object>> market)
+  {
+    this(timeslot, timeslot, ended, context, portfolio, market);
+  }
+
+  private TimeslotSnapshot (int timeslot, int firstTimeslot, boolean ended,
+                            Map<String, List<Object>> context,
+                            Map<String, List<Object>> portfolio,
+                            Map<String, List<Object>> market)
+  {
+    super();
+    this.timeslot = timeslot;
+    this.firstTimeslot = firstTimeslot;
+    this.ended = ended;
+    this.contextMessages = freeze(context);
+    this.portfolioMessages = freeze(portfolio);
+    this.marketMessages = freeze(market);
+  }
+
+  /**
+   * Returns a new snapshot holding the messages of this one followed by
+   * those of the later one.
+   */
+  public TimeslotSnapshot append (TimeslotSnapshot later)
+  {
+    return new TimeslotSnapshot(later.timeslot, firstTimeslot,
+                                ended || later.ended,
+                                merge(contextMessages, later.contextMessages),
+                                merge(portfolioMessages, later.portfolioMessages),
+                                merge(marketMessages, later.marketMessages));
+  }
+
+  /**
+   * Index of the completed timeslot
+   */
+  public int getTimeslot ()
+  {
+    return timeslot;
+  }
+
+  /**
+   * Index of the earliest timeslot whose messages are included. Differs
+   * from getTimeslot() only if snapshots were merged.
+   */
+  public int getFirstTimeslot ()
+  {
+    return firstTimeslot;
+  }
+
+  /**
+   * True if SimEnd has been received; this is the last snapshot.
+   */
+  public boolean isEnded ()
+  {
+    return ended;
+  }
+
+  public Map<String, List<Object>> getContextMessages ()
+  {
+    return contextMessages;
+  }
+
+  public Map<String, List<Object>> getPortfolioMessages ()
+  {
+    return portfolioMessages;
+  }
+
+  public Map<String, List<Object>> getMarketMessages ()
+  {
+    return marketMessages;
+  }
+
+  /**
+   * Returns the messages of the given type, whichever service buffered them,
+   * or an empty list.
+   */
+  public List<Object> getMessages (String type)
+  {
+    List<Object> result = contextMessages.get(type);
+    if (null == result)
+      result = portfolioMessages.get(type);
+    if (null == result)
+      result = marketMessages.get(type);
+    if (null == result)
+      result = Collections.emptyList();
+    return result;
+  }
+
+  private static Map<String, List<Object>> freeze (Map<String, List<Object>> msgs)
+  {
+    if (null == msgs || msgs.isEmpty())
+      return Collections.emptyMap();
+    Map<String, List<Object>> result = new LinkedHashMap<>();
+    for (Map.Entry<String, List<Object>> entry : msgs.entrySet())
+      result.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+    return Collections.unmodifiableMap(result);
+  }
+
+  private static Map<String, List<Object>> merge (Map<String, List<Object>> earlier,
+                                                  Map<String, List<Object>> later)
+  {
+    Map<String, List<Object>> result = new LinkedHashMap<>();
+    for (Map.Entry<String, List<Object>> entry : earlier.entrySet())
+      result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+    for (Map.Entry<String, List<Object>> entry : later.entrySet()) {
+      List<Object> msgs = result.get(entry.getKey());
+      if (null == msgs)
+        result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+      else
+        msgs.addAll(entry.getValue());
+    }
+    return result;
+  }
+}
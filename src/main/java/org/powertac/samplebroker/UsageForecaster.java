@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.util.Arrays;
+
+/**
+ * Per-customer usage models for forecasting. Each model predicts usage in a
+ * timeslot as the sum of an hour-of-day level, a day-of-week offset and a
+ * temperature term,
+ * hourly[hour] + daily[day] + beta * (temperature - mean temperature),
+ * and learns from each observation by exponential smoothing of the first two
+ * and an exponentially weighted regression of the remaining error on
+ * temperature for the third. The temperature term is left out while no
+ * temperature is known for the timeslot.
+ *
+ * Models are numbered and reused like the rows of a UsageMatrix; the
+ * portfolio manager keeps one for each subscription record. Temperatures,
+ * observed or forecast, are kept for the last TEMPERATURE_SLOTS timeslots.
+ *
+ * Not thread-safe; the portfolio manager only uses it while holding its own
+ * monitor.
+ *
+ * @author John Collins
+ */
+public class UsageForecaster
+{
+  static final double HOURLY_ALPHA = 0.3;
+  static final double DAILY_ALPHA = 0.05;
+  static final double WEATHER_DECAY = 0.98;
+  static final int TEMPERATURE_SLOTS = 48;
+
+  private int capacity = 64;
+  private int modelCount = 0; // models ever allocated
+  private double[] hourly = new double[capacity * 24];
+  private boolean[] seen = new boolean[capacity * 24];
+  private double[] daily = new double[capacity * 7];
+  private double[] sxx = new double[capacity];
+  private double[] sxy = new double[capacity];
+
+  // released models, reused before new ones are added
+  private int[] free = new int[16];
+  private int freeCount = 0;
+
+  // temperatures by timeslot, in a ring
+  private final double[] temperatures = new double[TEMPERATURE_SLOTS];
+  private final int[] temperatureTimeslots = new int[TEMPERATURE_SLOTS];
+  private double meanTemperature = 0.0;
+  private long observedTemperatures = 0;
+
+  public UsageForecaster ()
+  {
+    super();
+    Arrays.fill(temperatureTimeslots, -1);
+  }
+
+  /**
+   * Returns a new, empty model.
+   */
+  public int allocate ()
+  {
+    int model;
+    if (freeCount > 0) {
+      model = free[--freeCount];
+    }
+    else {
+      model = modelCount++;
+      if (model == capacity)
+        grow();
+    }
+    Arrays.fill(hourly, model * 24, model * 24 + 24, 0.0);
+    Arrays.fill(seen, model * 24, model * 24 + 24, false);
+    Arrays.fill(daily, model * 7, model * 7 + 7, 0.0);
+    sxx[model] = 0.0;
+    sxy[model] = 0.0;
+    return model;
+  }
+
+  /**
+   * Gives up a model for reuse.
+   */
+  public void release (int model)
+  {
+    if (freeCount == free.length)
+      free = Arrays.copyOf(free, freeCount * 2);
+    free[freeCount++] = model;
+  }
+
+  /**
+   * Records the temperature for a timeslot. Observed temperatures also
+   * update the mean that the temperature term is measured from.
+   */
+  public void setTemperature (int timeslot, double temperature,
+                              boolean observed)
+  {
+    int slot = Math.floorMod(timeslot, TEMPERATURE_SLOTS);
+    temperatures[slot] = temperature;
+    temperatureTimeslots[slot] = timeslot;
+    if (observed) {
+      observedTemperatures += 1;
+      meanTemperature += (temperature - meanTemperature) / observedTemperatures;
+    }
+  }
+
+  /**
+   * Returns the temperature for a timeslot, or NaN if none is known.
+   */
+  public double getTemperature (int timeslot)
+  {
+    int slot = Math.floorMod(timeslot, TEMPERATURE_SLOTS);
+    if (temperatureTimeslots[slot] != timeslot)
+      return Double.NaN;
+    return temperatures[slot];
+  }
+
+  /**
+   * Updates a model with the usage observed in a timeslot, given the
+   * timeslot's hour of the week (0 is Monday 00:00).
+   */
+  public void observe (int model, int timeslot, int hourOfWeek, double usage)
+  {
+    int hour = model * 24 + hourOfWeek % 24;
+    int day = model * 7 + hourOfWeek / 24;
+    double x = temperatureDeviation(timeslot);
+    if (!seen[hour]) {
+      hourly[hour] = usage - daily[day];
+      seen[hour] = true;
+      return;
+    }
+    double base = hourly[hour] + daily[day];
+    if (!Double.isNaN(x)) {
+      sxx[model] = WEATHER_DECAY * sxx[model] + x * x;
+      sxy[model] = WEATHER_DECAY * sxy[model] + x * (usage - base);
+    }
+    double error = usage - base - weatherTerm(model, x);
+    hourly[hour] += HOURLY_ALPHA * error;
+    daily[day] += DAILY_ALPHA * error;
+  }
+
+  /**
+   * Forecasts a model's usage in a timeslot, given its hour of the week.
+   * Returns NaN if the model has not yet seen that hour of the day.
+   */
+  public double forecast (int model, int timeslot, int hourOfWeek)
+  {
+    int hour = model * 24 + hourOfWeek % 24;
+    if (!seen[hour])
+      return Double.NaN;
+    return hourly[hour] + daily[model * 7 + hourOfWeek / 24]
+        + weatherTerm(model, temperatureDeviation(timeslot));
+  }
+
+  /**
+   * Estimated change in usage per degree for a model.
+   */
+  public double getTemperatureSensitivity (int model)
+  {
+    return (sxx[model] > 1e-6) ? sxy[model] / sxx[model] : 0.0;
+  }
+
+  private double weatherTerm (int model, double deviation)
+  {
+    if (Double.isNaN(deviation))
+      return 0.0;
+    return getTemperatureSensitivity(model) * deviation;
+  }
+
+  private double temperatureDeviation (int timeslot)
+  {
+    if (observedTemperatures == 0)
+      return Double.NaN;
+    return getTemperature(timeslot) - meanTemperature;
+  }
+
+  private void grow ()
+  {
+    capacity *= 2;
+    hourly = Arrays.copyOf(hourly, capacity * 24);
+    seen = Arrays.copyOf(seen, capacity * 24);
+    daily = Arrays.copyOf(daily, capacity * 7);
+    sxx = Arrays.copyOf(sxx, capacity);
+    sxy = Arrays.copyOf(sxy, capacity);
+  }
+}
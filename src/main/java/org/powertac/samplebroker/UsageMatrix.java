@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-customer usage profiles for the portfolio manager, stored as the rows
+ * of a single contiguous matrix of doubles, one column per usage index.
+ * Customer records hold a row number instead of an array of their own.
+ * Rows are reference counted so that a new subscription record can share
+ * the row of the profile it was seeded from; the row is copied the first
+ * time either side writes to it.
+ *
+ * The matrix can be kept on the Java heap or in a direct buffer outside it.
+ * It is not thread-safe; the portfolio manager only uses it while holding
+ * its own monitor.
+ *
+ * @author John Collins
+ */
+public class UsageMatrix
+{
+  private static final int INITIAL_ROWS = 64;
+
+  private final int columns;
+  private final boolean offHeap;
+  private DoubleBuffer data;
+  private int[] refCounts;
+  private int rowCount = 0; // rows ever allocated
+
+  // released rows, reused before new ones are added
+  private int[] free = new int[16];
+  private int freeCount = 0;
+
+  public UsageMatrix (int columns, boolean offHeap)
+  {
+    super();
+    this.columns = columns;
+    this.offHeap = offHeap;
+    data = allocate(INITIAL_ROWS * columns);
+    refCounts = new int[INITIAL_ROWS];
+  }
+
+  public int getColumns ()
+  {
+    return columns;
+  }
+
+  public boolean isOffHeap ()
+  {
+    return offHeap;
+  }
+
+  /**
+   * Number of rows in use.
+   */
+  public int size ()
+  {
+    return rowCount - freeCount;
+  }
+
+  /**
+   * Returns a new row of zeros.
+   */
+  public int allocate ()
+  {
+    int row;
+    if (freeCount > 0) {
+      row = free[--freeCount];
+    }
+    else {
+      row = rowCount++;
+      ensureRows(rowCount);
+    }
+    int base = row * columns;
+    for (int i = 0; i < columns; i++)
+      data.put(base + i, 0.0);
+    refCounts[row] = 1;
+    return row;
+  }
+
+  /**
+   * Adds a reference to the given row, and returns it.
+   */
+  public int share (int row)
+  {
+    refCounts[row] += 1;
+    return row;
+  }
+
+  /**
+   * Returns a row that the caller may write to: the given one if the caller
+   * is its only user, otherwise a private copy. In the second case the
+   * caller's reference to the original is dropped.
+   */
+  public int writable (int row)
+  {
+    if (refCounts[row] == 1)
+      return row;
+    refCounts[row] -= 1;
+    int copy = allocate();
+    int from = row * columns;
+    int to = copy * columns;
+    for (int i = 0; i < columns; i++)
+      data.put(to + i, data.get(from + i));
+    return copy;
+  }
+
+  /**
+   * Drops a reference to the given row; the row is reused once it has no
+   * more users.
+   */
+  public void release (int row)
+  {
+    refCounts[row] -= 1;
+    if (refCounts[row] == 0) {
+      if (freeCount == free.length)
+        free = Arrays.copyOf(free, freeCount * 2);
+      free[freeCount++] = row;
+    }
+  }
+
+  public double get (int row, int column)
+  {
+    return data.get(row * columns + column);
+  }
+
+  /**
+   * Stores a value. The row must have come from writable() or allocate().
+   */
+  public void set (int row, int column, double value)
+  {
+    data.put(row * columns + column, value);
+  }
+
+  /**
+   * Returns a copy of the given row.
+   */
+  public double[] getRow (int row)
+  {
+    double[] result = new double[columns];
+    int base = row * columns;
+    for (int i = 0; i < columns; i++)
+      result[i] = data.get(base + i);
+    return result;
+  }
+
+  /**
+   * Packs the given rows, each multiplied by its scale factor, into a single
+   * little-endian buffer: int32 row count, int32 column count, then the
+   * values as float64, row by row.
+   */
+  public byte[] pack (int[] rows, double[] scales)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(8 + rows.length * columns * 8)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(rows.length);
+    buffer.putInt(columns);
+    for (int r = 0; r < rows.length; r++) {
+      int base = rows[r] * columns;
+      for (int i = 0; i < columns; i++)
+        buffer.putDouble(data.get(base + i) * scales[r]);
+    }
+    return buffer.array();
+  }
+
+  private void ensureRows (int rows)
+  {
+    if (rows <= refCounts.length)
+      return;
+    int capacity = Math.max(rows, refCounts.length * 2);
+    DoubleBuffer bigger = allocate(capacity * columns);
+    DoubleBuffer old = data.duplicate();
+    old.clear();
+    bigger.put(old);
+    bigger.clear();
+    data = bigger;
+    refCounts = Arrays.copyOf(refCounts, capacity);
+  }
+
+  private DoubleBuffer allocate (int size)
+  {
+    if (offHeap)
+      return ByteBuffer.allocateDirect(size * 8)
+          .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    return DoubleBuffer.wrap(new double[size]);
+  }
+}
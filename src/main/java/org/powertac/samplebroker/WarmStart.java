@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Snapshot of what the portfolio manager learned in one game, to give the
+ * next game a running start: the per-customer usage profile for each
+ * customer name and power type, and summary statistics of competitors'
+ * tariffs. Both are keyed by strings, "name/POWERTYPE" for profiles.
+ *
+ * The file is little-endian: int32 magic, int32 version, int32 profile
+ * length, then int32 profile count and for each a key and the profile as
+ * float64, then int32 statistics count and for each a key and STAT_SIZE
+ * float64. Keys are an int16 length and UTF-8 bytes. Loading maps the file
+ * and only indexes the profiles; each one is copied out when asked for.
+ *
+ * @author John Collins
+ */
+public class WarmStart
+{
+  static private Logger log = LogManager.getLogger(WarmStart.class);
+
+  static final int MAGIC = 0x50545753; // "PTWS"
+  static final int VERSION = 1;
+  static final int STAT_SIZE = 3;
+
+  private final int columns;
+  private final ByteBuffer data;
+  private final Map<String, Integer> profileOffsets = new HashMap<>();
+  private final Map<String, double[]> stats = new LinkedHashMap<>();
+
+  private WarmStart (int columns, ByteBuffer data)
+  {
+    super();
+    this.columns = columns;
+    this.data = data;
+  }
+
+  /**
+   * Loads a snapshot. Returns null, after logging the reason, if the file
+   * is missing or unreadable, or holds profiles of a different length.
+   */
+  public static WarmStart load (Path path, int columns)
+  {
+    if (!Files.isReadable(path)) {
+      log.info("No warm-start file {}", path);
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      ByteBuffer data = mapped.order(ByteOrder.LITTLE_ENDIAN);
+      if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+        log.error("{} is not a warm-start file", path);
+        return null;
+      }
+      if (data.getInt() != columns) {
+        log.warn("Warm-start profiles in {} do not have length {}", path, columns);
+        return null;
+      }
+      WarmStart result = new WarmStart(columns, data);
+      int profiles = data.getInt();
+      for (int i = 0; i < profiles; i++) {
+        String key = getKey(data);
+        result.profileOffsets.put(key, data.position());
+        data.position(data.position() + columns * 8);
+      }
+      int statCount = data.getInt();
+      for (int i = 0; i < statCount; i++) {
+        String key = getKey(data);
+        double[] values = new double[STAT_SIZE];
+        for (int j = 0; j < STAT_SIZE; j++)
+          values[j] = data.getDouble();
+        result.stats.put(key, values);
+      }
+      log.info("Loaded {} warm-start profiles from {}", profiles, path);
+      return result;
+    }
+    catch (IOException | RuntimeException ex) {
+      log.error("Cannot load warm-start file {}: {}", path, ex.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Writes a snapshot, replacing the file only once the new one is
+   * complete. Returns false, after logging the reason, if that fails.
+   */
+  public static boolean write (Path path, int columns,
+                               Map<String, double[]> profiles,
+                               Map<String, double[]> stats)
+  {
+    int size = 16 + 4;
+    for (String key : profiles.keySet())
+      size += 2 + utf8(key).length + columns * 8;
+    for (String key : stats.keySet())
+      size += 2 + utf8(key).length + STAT_SIZE * 8;
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(columns);
+    buffer.putInt(profiles.size());
+    for (Map.Entry<String, double[]> entry : profiles.entrySet()) {
+      putKey(buffer, entry.getKey());
+      for (int i = 0; i < columns; i++)
+        buffer.putDouble(entry.getValue()[i]);
+    }
+    buffer.putInt(stats.size());
+    for (Map.Entry<String, double[]> entry : stats.entrySet()) {
+      putKey(buffer, entry.getKey());
+      for (int i = 0; i < STAT_SIZE; i++)
+        buffer.putDouble(entry.getValue()[i]);
+    }
+    try {
+      Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+      Files.write(temp, buffer.array());
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      log.info("Wrote {} warm-start profiles to {}", profiles.size(), path);
+      return true;
+    }
+    catch (IOException ex) {
+      log.error("Cannot write warm-start file {}: {}", path, ex.toString());
+      return false;
+    }
+  }
+
+  public int getColumns ()
+  {
+    return columns;
+  }
+
+  /**
+   * Returns a copy of the saved profile for the given customer name and
+   * power type, or null if there is none.
+   */
+  public double[] getProfile (String key)
+  {
+    Integer offset = profileOffsets.get(key);
+    if (null == offset)
+      return null;
+    double[] result = new double[columns];
+    for (int i = 0; i < columns; i++)
+      result[i] = data.getDouble(offset + i * 8);
+    return result;
+  }
+
+  /**
+   * Keys of all the saved profiles.
+   */
+  public Iterable<String> getProfileKeys ()
+  {
+    return profileOffsets.keySet();
+  }
+
+  /**
+   * The saved competitor statistics.
+   */
+  public Map<String, double[]> getStats ()
+  {
+    return stats;
+  }
+
+  private static String getKey (ByteBuffer data)
+  {
+    byte[] bytes = new byte[data.getShort() & 0xffff];
+    data.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putKey (ByteBuffer buffer, String key)
+  {
+    byte[] bytes = utf8(key);
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static byte[] utf8 (String key)
+  {
+    return key.getBytes(StandardCharsets.UTF_8);
+  }
+}
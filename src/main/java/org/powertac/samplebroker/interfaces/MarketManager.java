@@ -15,6 +15,8 @@
  */
 package org.powertac.samplebroker.interfaces;
 
+import org.powertac.common.Order;
+
 /**
  * Encapsulates broker market interactions.
  * @author John Collins
@@ -26,4 +28,10 @@ public interface MarketManager
    * Returns the mean price observed in the market
    */
   public double getMeanMarketPrice ();
+
+  /**
+   * Notes an order sent to the server outside the market manager, so it
+   * counts as this timeslot's submission and the fallback can repeat it.
+   */
+  public void recordOrder (Order order);
 }
\ No newline at end of file
@@ -26,4 +26,10 @@ public interface PortfolioManager
    * index (normally a timeslot serial number).
    */
   public double collectUsage (int index); 
+
+  /**
+   * Returns forecasts of total net usage, in the sign convention of
+   * collectUsage(), for count timeslots starting with the given one.
+   */
+  public double[] forecastUsage (int timeslot, int count);
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker.interfaces;
+
+import org.powertac.samplebroker.TimeslotSnapshot;
+
+/**
+ * Callback interface for push-mode timeslot notification. The Python side
+ * implements this through the Py4J callback server and registers it with
+ * Envoy.registerTimeslotListener().
+ * @author John Collins
+ */
+public interface TimeslotListener
+{
+  /**
+   * Called as soon as TimeslotComplete has been handled, with the messages
+   * buffered during the timeslot. Calls are made in timeslot order from a
+   * single notifier thread.
+   */
+  public void timeslotComplete (TimeslotSnapshot snapshot);
+}
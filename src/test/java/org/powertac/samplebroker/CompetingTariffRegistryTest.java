@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * @author John Collins
+ */
+class CompetingTariffRegistryTest
+{
+  private CompetingTariffRegistry uut;
+  private Broker alice;
+  private Broker bob;
+
+  @BeforeEach
+  void setUp ()
+  {
+    uut = new CompetingTariffRegistry();
+    alice = new Broker("Alice");
+    bob = new Broker("Bob");
+  }
+
+  @Test
+  void testIndexes ()
+  {
+    TariffSpecification a1 = new TariffSpecification(alice, PowerType.CONSUMPTION);
+    TariffSpecification a2 = new TariffSpecification(alice, PowerType.PRODUCTION);
+    TariffSpecification b1 = new TariffSpecification(bob, PowerType.CONSUMPTION);
+    assertTrue(uut.add(a1, 360));
+    assertTrue(uut.add(a2, 360));
+    assertTrue(uut.add(b1, 361));
+    assertFalse(uut.add(b1, 361), "already registered");
+    assertEquals(3, uut.size());
+    assertSame(a2, uut.get(a2.getId()));
+    assertEquals(List.of(a1, b1), uut.getByPowerType(PowerType.CONSUMPTION));
+    assertEquals(List.of(a1, a2), uut.getByBroker("Alice"));
+    assertArrayEquals(new long[] {b1.getId()}, uut.getIdsByBroker("Bob"));
+    assertEquals(0, uut.getIds("STORAGE").length);
+  }
+
+  @Test
+  void testRevoke ()
+  {
+    TariffSpecification[] specs = new TariffSpecification[4];
+    for (int i = 0; i < specs.length; i++) {
+      specs[i] = new TariffSpecification((i % 2 == 0) ? alice : bob,
+                                         PowerType.CONSUMPTION);
+      uut.add(specs[i], 360);
+    }
+    assertSame(specs[0], uut.revoke(specs[0].getId(), 361));
+    assertNull(uut.revoke(specs[0].getId(), 361), "already revoked");
+    assertNull(uut.get(specs[0].getId()));
+    assertEquals(3, uut.size());
+    assertEquals(List.of(specs[3], specs[1], specs[2]),
+                 uut.getByPowerType(PowerType.CONSUMPTION),
+                 "last one moves into the gap");
+    assertEquals(List.of(specs[2]), uut.getByBroker("Alice"));
+
+    // revoking the moved entry uses its updated position
+    assertSame(specs[3], uut.revoke(specs[3].getId(), 362));
+    assertEquals(List.of(specs[2], specs[1]),
+                 uut.getByPowerType(PowerType.CONSUMPTION));
+    assertEquals(List.of(specs[1]), uut.getByBroker("Bob"));
+  }
+
+  @Test
+  void testChangeLog ()
+  {
+    TariffSpecification s1 = new TariffSpecification(alice, PowerType.CONSUMPTION);
+    TariffSpecification s2 = new TariffSpecification(bob, PowerType.CONSUMPTION);
+    TariffSpecification s3 = new TariffSpecification(bob, PowerType.STORAGE);
+    uut.add(s1, 360);
+    uut.add(s2, 362);
+    uut.revoke(s1.getId(), 363);
+    uut.add(s3, 363);
+    assertArrayEquals(new long[] {s1.getId(), s2.getId(), s3.getId()},
+                      uut.getAdded(0, 400));
+    assertArrayEquals(new long[] {s2.getId()}, uut.getAdded(361, 362));
+    assertArrayEquals(new long[] {s3.getId()}, uut.getAdded(363, 363));
+    assertArrayEquals(new long[] {s1.getId()}, uut.getRevoked(363, 363));
+    assertEquals(0, uut.getRevoked(360, 362).length);
+    assertEquals(0, uut.getAdded(364, 400).length);
+    long[] remaining = uut.getIds("CONSUMPTION");
+    assertEquals("[" + s2.getId() + "]", Arrays.toString(remaining));
+  }
+}
@@ -1,11 +1,17 @@
 package org.powertac.samplebroker;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
 import static org.powertac.util.MessageDispatcher.dispatch;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Order;
 import org.powertac.common.msg.SimStart;
+import org.powertac.samplebroker.interfaces.BrokerContext;
+import org.powertac.samplebroker.interfaces.MarketManager;
+import org.springframework.test.util.ReflectionTestUtils;
 
 class ContextManagerTest
 {
@@ -33,6 +39,24 @@ class ContextManagerTest
     assertTrue(uut.checkForStart());
   }
 
+  // orders Python sends directly are reported to the MarketManager
+  @Test
+  void testSendOrder ()
+  {
+    BrokerContext broker = mock(BrokerContext.class);
+    MarketManager marketManager = mock(MarketManager.class);
+    ReflectionTestUtils.setField(uut, "broker", broker);
+    ReflectionTestUtils.setField(uut, "marketManager", marketManager);
+    Order order = new Order(new Broker("Sample"), 362, 1.0, -30.0);
+    uut.sendMessage(order);
+    verify(marketManager).recordOrder(order);
+    verify(broker).sendMessage(order);
+    Object other = new Object();
+    uut.sendMessage(other);
+    verify(broker).sendMessage(other);
+    verifyNoMoreInteractions(marketManager);
+  }
+
   class MessageSender extends Thread
   {
     Object targetMessage;
@@ -5,8 +5,14 @@ package org.powertac.samplebroker;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.powertac.common.ClearedTrade;
 
 /**
  * @author jcollins
@@ -36,6 +42,76 @@ class EnvoyTest
     assertEquals(1, result);
   }
 
+  /**
+   * Test method for {@link org.powertac.samplebroker.Envoy#getService(String)}.
+   */
+  @Test
+  void testGetServiceWaitsForRegistration () throws Exception
+  {
+    assertFalse(envoy.waitForServices(10));
+    Object context = new Object();
+    Thread registrar = new Thread(() -> {
+      envoy.registerService("ContextManager", context);
+      envoy.registerService("PortfolioManager", new Object());
+      envoy.registerService("MarketManager", new Object());
+    });
+    registrar.start();
+    assertSame(context, envoy.getService("ContextManager"));
+    assertTrue(envoy.waitForServices(1000));
+    assertNull(envoy.getService("NoSuchService"));
+    registrar.join();
+  }
+
+  /**
+   * A new game starts with an empty history.
+   */
+  @Test
+  void testNewGameClearsHistory ()
+  {
+    ContextManagerService context = new ContextManagerService();
+    envoy.registerService("ContextManager", context);
+    envoy.setHistoryDepth("ClearedTrade", 4);
+    context.getMessageStore().add(new ClearedTrade(360, 1.0, -20.0, null));
+    assertEquals(1, envoy.getHistory("ClearedTrade", 0, 1000).size());
+    envoy.newGame();
+    assertTrue(envoy.getHistory("ClearedTrade", 0, 1000).isEmpty());
+    // the depth is kept
+    context.getMessageStore().add(new ClearedTrade(361, 1.0, -20.0, null));
+    assertEquals(1, envoy.getHistory("ClearedTrade", 0, 1000).size());
+  }
+
+  /**
+   * Polled columns honor the field subscription.
+   */
+  @Test
+  void testPollColumnsSelectFields ()
+  {
+    ContextManagerService context = new ContextManagerService();
+    envoy.registerService("ContextManager", context);
+    envoy.subscribe(Map.of("ClearedTrade", List.of("timeslot")));
+    context.getMessageStore().add(new ClearedTrade(360, 1.0, -20.0, null));
+    byte[] packed = envoy.pollMessages(0l).getColumns().get("ClearedTrade");
+    ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(1, buffer.getInt(), "one row");
+    assertEquals(1, buffer.getInt(), "one column");
+  }
+
+  /**
+   * Sessions get their own copies of broker classes, but share the types
+   * that cross the gateway.
+   */
+  @Test
+  void testSessionClassLoader () throws Exception
+  {
+    SessionClassLoader loader = new SessionClassLoader(Envoy.class.getClassLoader());
+    Class<?> sessionEnvoy = loader.loadClass(Envoy.class.getName());
+    assertNotSame(Envoy.class, sessionEnvoy);
+    assertNotSame(envoy, sessionEnvoy.getMethod("getInstance").invoke(null));
+    assertSame(TimeslotSnapshot.class,
+               loader.loadClass(TimeslotSnapshot.class.getName()));
+    loader.close();
+  }
+
   /**
    * Test method for {@link org.powertac.samplebroker.Envoy#waitForDelay()}.
    */
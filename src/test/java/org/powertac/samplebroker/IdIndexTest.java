@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author John Collins
+ */
+class IdIndexTest
+{
+  @Test
+  void testDenseSlots ()
+  {
+    IdIndex uut = new IdIndex();
+    assertEquals(-1, uut.find(501));
+    assertEquals(0, uut.add(501));
+    assertEquals(1, uut.add(0));
+    assertEquals(0, uut.add(501), "existing slot");
+    assertEquals(2, uut.size());
+    assertEquals(1, uut.find(0));
+    assertEquals(501, uut.getId(0));
+    assertArrayEquals(new long[] {501, 0}, uut.getIds());
+  }
+
+  @Test
+  void testGrowth ()
+  {
+    IdIndex uut = new IdIndex();
+    for (int i = 0; i < 1000; i++)
+      assertEquals(i, uut.add(100000l + i * 64l));
+    assertEquals(1000, uut.size());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, uut.find(100000l + i * 64l));
+      assertEquals(100000l + i * 64l, uut.getId(i));
+    }
+    assertEquals(-1, uut.find(99999));
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import org.joda.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.powertac.common.Broker;
+import org.powertac.common.Competition;
+import org.powertac.common.MarketTransaction;
+import org.powertac.common.Order;
+import org.powertac.common.Orderbook;
+import org.powertac.common.OrderbookOrder;
+import org.powertac.common.TimeService;
+import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.samplebroker.core.BrokerPropertiesService;
+import org.powertac.samplebroker.core.PowerTacBroker;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * @author John Collins
+ */
+class MarketManagerTest
+{
+  private TimeslotRepo timeslotRepo;
+  private TimeService timeService;
+  private PowerTacBroker broker;
+  private MarketManagerService marketManagerService;
+
+  @BeforeEach
+  void setUp () throws Exception
+  {
+    Competition.newInstance("market-test");
+    broker = mock(PowerTacBroker.class);
+    when(broker.getBroker()).thenReturn(new Broker("Sample"));
+    timeslotRepo = mock(TimeslotRepo.class);
+    timeService = new TimeService();
+    marketManagerService = new MarketManagerService();
+    ReflectionTestUtils.setField(marketManagerService, "timeslotRepo", timeslotRepo);
+    ReflectionTestUtils.setField(marketManagerService, "timeService", timeService);
+    ReflectionTestUtils.setField(marketManagerService, "propertiesService",
+                                 mock(BrokerPropertiesService.class));
+    marketManagerService.initialize(broker);
+  }
+
+  @Test
+  void testRemainingMillis ()
+  {
+    TimeslotDeadline deadline = new TimeslotDeadline(timeService);
+    assertEquals(-1l, deadline.getRemainingMillis(), "clock not running");
+    timeService.setRate(720l);
+    timeService.setStart(1000000l);
+    // an hour of simulation time takes 5 seconds
+    assertEquals(5000l, deadline.getTimeslotMillis());
+    assertEquals(5000l, deadline.getRemainingMillis(1000000l));
+    assertEquals(3000l, deadline.getRemainingMillis(1002000l));
+    assertEquals(4000l, deadline.getRemainingMillis(1006000l), "next timeslot");
+  }
+
+  @Test
+  void testFallbackRepeatsLastOrders ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(360);
+    when(timeslotRepo.isTimeslotEnabled(361)).thenReturn(false);
+    when(timeslotRepo.isTimeslotEnabled(362)).thenReturn(true);
+    marketManagerService.submitOrders(new int[] {361, 362},
+                                      new double[] {1.0, 2.0},
+                                      new double[] {-30.0, Double.NaN});
+    verify(broker, times(2)).sendMessage(any(Order.class));
+
+    // orders were submitted in this timeslot, so no fallback
+    marketManagerService.sendFallback(360);
+    verify(broker, times(2)).sendMessage(any(Order.class));
+    assertEquals(0, marketManagerService.getFallbackCount());
+
+    // nothing submitted in the next one; 361 has closed
+    when(timeslotRepo.currentSerialNumber()).thenReturn(361);
+    marketManagerService.sendFallback(361);
+    ArgumentCaptor<Order> sent = ArgumentCaptor.forClass(Order.class);
+    verify(broker, times(3)).sendMessage(sent.capture());
+    Order order = sent.getValue();
+    assertEquals(362, order.getTimeslotIndex());
+    assertEquals(2.0, order.getMWh(), 1e-6);
+    assertNull(order.getLimitPrice());
+    assertEquals(1, marketManagerService.getFallbackCount());
+  }
+
+  @Test
+  void testFallbackSkipsClearedOrders ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(360);
+    when(timeslotRepo.isTimeslotEnabled(anyInt())).thenReturn(true);
+    marketManagerService.submitOrders(new int[] {362, 363},
+                                      new double[] {1.0, 2.0},
+                                      new double[] {-30.0, -31.0});
+    // the order for 362 clears in full
+    marketManagerService.handleMessage(new MarketTransaction(new Broker("Sample"),
+                                                             360, 362, 1.0, -30.0));
+    when(timeslotRepo.currentSerialNumber()).thenReturn(361);
+    marketManagerService.sendFallback(361);
+    ArgumentCaptor<Order> sent = ArgumentCaptor.forClass(Order.class);
+    verify(broker, times(3)).sendMessage(sent.capture());
+    assertEquals(363, sent.getValue().getTimeslotIndex());
+    assertEquals(1, marketManagerService.getFallbackCount());
+  }
+
+  @Test
+  void testRecordedOrderSuppressesFallback ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(360);
+    when(timeslotRepo.isTimeslotEnabled(anyInt())).thenReturn(true);
+    // sent by Python through the ContextManager
+    marketManagerService.recordOrder(new Order(new Broker("Sample"), 362, 1.0, -30.0));
+    marketManagerService.sendFallback(360);
+    verify(broker, never()).sendMessage(any());
+    assertEquals(0, marketManagerService.getFallbackCount());
+
+    // and is repeated if nothing is sent in the next timeslot
+    when(timeslotRepo.currentSerialNumber()).thenReturn(361);
+    marketManagerService.sendFallback(361);
+    ArgumentCaptor<Order> sent = ArgumentCaptor.forClass(Order.class);
+    verify(broker).sendMessage(sent.capture());
+    assertEquals(362, sent.getValue().getTimeslotIndex());
+  }
+
+  @Test
+  void testExplicitFallback ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(360);
+    when(timeslotRepo.isTimeslotEnabled(anyInt())).thenReturn(true);
+    marketManagerService.setFallbackOrders(new int[] {370},
+                                           new double[] {-1.5},
+                                           new double[] {25.0});
+    marketManagerService.sendFallback(359);
+    verify(broker, never()).sendMessage(any());
+    marketManagerService.sendFallback(360);
+    ArgumentCaptor<Order> sent = ArgumentCaptor.forClass(Order.class);
+    verify(broker).sendMessage(sent.capture());
+    assertEquals(370, sent.getValue().getTimeslotIndex());
+    assertEquals(25.0, sent.getValue().getLimitPrice(), 1e-6);
+  }
+
+  @Test
+  void testOrderbookCurves ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(360);
+    Orderbook book = new Orderbook(362, 30.0, new Instant(0l));
+    book.addAsk(new OrderbookOrder(-2.0, 40.0));
+    marketManagerService.handleMessage(book);
+    assertEquals(40.0, marketManagerService.estimateClearingPrice(362, 1.0), 1e-9);
+    assertEquals(1, marketManagerService.getOrderbookCurves().getHistory(362).size());
+  }
+}
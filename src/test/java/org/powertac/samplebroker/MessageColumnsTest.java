@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.powertac.common.ClearedTrade;
+import org.powertac.common.Competition;
+
+/**
+ * @author John Collins
+ */
+class MessageColumnsTest
+{
+  @Test
+  void testEncodeClearedTrades ()
+  {
+    List<Object> trades = new ArrayList<>();
+    trades.add(new ClearedTrade(361, 12.5, -35.0, null));
+    trades.add(new ClearedTrade(362, 7.25, -40.0, null));
+    byte[] packed = MessageColumns.encode("ClearedTrade", trades);
+    assertNotNull(packed);
+
+    ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(2, buffer.getInt(), "two rows");
+    assertEquals(4, buffer.getInt(), "four columns");
+    assertEquals("id", readName(buffer));
+    assertEquals(MessageColumns.LONG, buffer.get());
+    buffer.getLong();
+    buffer.getLong();
+    assertEquals("timeslot", readName(buffer));
+    assertEquals(MessageColumns.INT, buffer.get());
+    assertEquals(361, buffer.getInt());
+    assertEquals(362, buffer.getInt());
+    assertEquals("executionMWh", readName(buffer));
+    assertEquals(MessageColumns.DOUBLE, buffer.get());
+    assertEquals(12.5, buffer.getDouble(), 1e-9);
+    assertEquals(7.25, buffer.getDouble(), 1e-9);
+    assertEquals("executionPrice", readName(buffer));
+    assertEquals(MessageColumns.DOUBLE, buffer.get());
+    assertEquals(-35.0, buffer.getDouble(), 1e-9);
+    assertEquals(-40.0, buffer.getDouble(), 1e-9);
+    assertFalse(buffer.hasRemaining(), "nothing left over");
+  }
+
+  @Test
+  void testExtract ()
+  {
+    Map<String, List<Object>> msgs = new HashMap<>();
+    List<Object> trades = new ArrayList<>();
+    trades.add(new ClearedTrade(361, 12.5, -35.0, null));
+    msgs.put("ClearedTrade", trades);
+    List<Object> comps = new ArrayList<>();
+    comps.add(Competition.newInstance("test"));
+    msgs.put("Competition", comps);
+
+    Map<String, byte[]> result = MessageColumns.extract(msgs);
+    assertEquals(1, result.size(), "one packed type");
+    assertTrue(result.containsKey("ClearedTrade"));
+    assertEquals(1, msgs.size(), "Competition left in place");
+    assertTrue(msgs.containsKey("Competition"));
+    assertNull(MessageColumns.encode("Competition", comps));
+  }
+
+  @Test
+  void testSelectedFields ()
+  {
+    Map<String, List<Object>> msgs = new HashMap<>();
+    List<Object> trades = new ArrayList<>();
+    trades.add(new ClearedTrade(361, 12.5, -35.0, null));
+    msgs.put("ClearedTrade", trades);
+    MessageSubscription subscription =
+        MessageSubscription.of(Map.of("ClearedTrade",
+                                      List.of("executionPrice", "timeslot")));
+
+    byte[] packed = MessageColumns.extract(msgs, subscription).get("ClearedTrade");
+    ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(1, buffer.getInt());
+    assertEquals(2, buffer.getInt(), "two columns, in layout order");
+    assertEquals("timeslot", readName(buffer));
+    assertEquals(MessageColumns.INT, buffer.get());
+    assertEquals(361, buffer.getInt());
+    assertEquals("executionPrice", readName(buffer));
+    assertEquals(MessageColumns.DOUBLE, buffer.get());
+    assertEquals(-35.0, buffer.getDouble(), 1e-9);
+    assertFalse(buffer.hasRemaining());
+  }
+
+  private String readName (ByteBuffer buffer)
+  {
+    byte[] label = new byte[buffer.getShort()];
+    buffer.get(label);
+    return new String(label, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.ClearedTrade;
+
+/**
+ * @author John Collins
+ */
+class MessageHistoryTest
+{
+  MessageHistory uut;
+
+  @BeforeEach
+  void setUp () throws Exception
+  {
+    uut = new MessageHistory();
+  }
+
+  @Test
+  void testOffByDefault ()
+  {
+    uut.record(MessageType.ClearedTrade, new ClearedTrade(360, 1.0, -20.0, null));
+    assertTrue(uut.query(MessageType.ClearedTrade, 0, 1000).isEmpty());
+    assertEquals(0, uut.getDepth(MessageType.ClearedTrade));
+  }
+
+  @Test
+  void testRange ()
+  {
+    uut.setDepth(MessageType.ClearedTrade, 48);
+    ClearedTrade ct360 = new ClearedTrade(360, 1.0, -20.0, null);
+    ClearedTrade ct361 = new ClearedTrade(361, 2.0, -21.0, null);
+    ClearedTrade ct362 = new ClearedTrade(362, 3.0, -22.0, null);
+    uut.record(MessageType.ClearedTrade, ct362);
+    uut.record(MessageType.ClearedTrade, ct360);
+    uut.record(MessageType.ClearedTrade, ct361);
+    assertEquals(List.of(ct360, ct361, ct362),
+                 uut.query(MessageType.ClearedTrade, 300, 400), "timeslot order");
+    assertEquals(List.of(ct361), uut.query(MessageType.ClearedTrade, 361, 361));
+
+    byte[] packed = uut.queryColumns(MessageType.ClearedTrade, 361, 362);
+    ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(2, buffer.getInt(), "two rows");
+  }
+
+  @Test
+  void testAgeOut ()
+  {
+    uut.setDepth(MessageType.ClearedTrade, 4);
+    for (int ts = 360; ts < 370; ts++)
+      uut.record(MessageType.ClearedTrade, new ClearedTrade(ts, 1.0, -20.0, null));
+    List<Object> kept = uut.query(MessageType.ClearedTrade, 0, 1000);
+    assertEquals(4, kept.size());
+    assertEquals(366, ((ClearedTrade) kept.get(0)).getTimeslotIndex());
+    // too old to be kept
+    uut.record(MessageType.ClearedTrade, new ClearedTrade(362, 1.0, -20.0, null));
+    assertEquals(4, uut.query(MessageType.ClearedTrade, 0, 1000).size());
+  }
+
+  @Test
+  void testCurrentTimeslot ()
+  {
+    uut.setDepth(MessageType.Competition, 2);
+    uut.setCurrentTimeslot(5);
+    assertEquals(5, uut.timeslotOf(MessageType.Competition, new Object()));
+    assertEquals(361, uut.timeslotOf(MessageType.ClearedTrade,
+                                     new ClearedTrade(361, 1.0, -20.0, null)));
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.MarketPosition;
+
+/**
+ * @author John Collins
+ */
+class MessageStoreTest
+{
+  MessageStore uut;
+
+  @BeforeEach
+  void setUp () throws Exception
+  {
+    uut = new MessageStore();
+  }
+
+  @Test
+  void testDrain ()
+  {
+    assertTrue(uut.drain().isEmpty(), "empty, not null");
+    uut.add(MessageType.ClearedTrade, "a1");
+    uut.add(MessageType.Orderbook, "b1");
+    uut.add(MessageType.ClearedTrade, "a2");
+    Map<String, List<Object>> result = uut.drain();
+    assertEquals(2, result.size());
+    assertEquals(List.of("a1", "a2"), result.get("ClearedTrade"));
+    assertEquals(List.of("b1"), result.get("Orderbook"));
+    assertTrue(uut.drain().isEmpty(), "drained");
+    // buffers are reused
+    uut.add(MessageType.Orderbook, "b2");
+    uut.drain();
+    uut.add(MessageType.ClearedTrade, "a3");
+    assertEquals(Map.of("ClearedTrade", List.of("a3")), uut.drain());
+  }
+
+  @Test
+  void testSelectiveDrain ()
+  {
+    uut.add(MessageType.ClearedTrade, "a1");
+    uut.add(MessageType.Orderbook, "b1");
+    assertEquals(Map.of("ClearedTrade", List.of("a1")), uut.drain(MessageType.ClearedTrade::equals));
+    assertEquals(Map.of("Orderbook", List.of("b1")), uut.drain());
+  }
+
+  @Test
+  void testAddByClass ()
+  {
+    Properties props = new Properties();
+    uut.add(props);
+    uut.add("not a message");
+    assertEquals(Map.of("Properties", List.of(props)), uut.drain());
+    assertEquals(MessageType.Properties, MessageType.forName("Properties"));
+    assertNull(MessageType.forName("String"));
+  }
+
+  @Test
+  void testSubscription ()
+  {
+    uut.add(MessageType.ClearedTrade, "a1");
+    uut.add(MessageType.Orderbook, "b1");
+    uut.setSubscription(MessageSubscription.of(List.of("Orderbook")));
+    uut.add(MessageType.ClearedTrade, "a2");
+    uut.add(MessageType.Orderbook, "b2");
+    assertEquals(Map.of("Orderbook", List.of("b1", "b2")), uut.drain(),
+                 "unsubscribed type dropped, including what was buffered");
+    assertEquals(List.of("Orderbook"), uut.getSubscription().getTypeNames());
+    uut.setSubscription(MessageSubscription.ALL);
+    uut.add(MessageType.ClearedTrade, "a3");
+    assertEquals(Map.of("ClearedTrade", List.of("a3")), uut.drain());
+  }
+
+  @Test
+  void testDropOldest ()
+  {
+    uut.setLimit(MessageType.ClearedTrade, 2, MessageStore.Overflow.DROP_OLDEST);
+    uut.add(MessageType.ClearedTrade, "a1");
+    uut.add(MessageType.ClearedTrade, "a2");
+    uut.add(MessageType.ClearedTrade, "a3");
+    assertEquals(2, uut.size(MessageType.ClearedTrade));
+    assertEquals(Map.of("ClearedTrade", List.of("a2", "a3")), uut.drain());
+    assertEquals(1l, uut.getDropped(MessageType.ClearedTrade));
+  }
+
+  @Test
+  void testCoalesceLatest ()
+  {
+    Broker broker = new Broker("Sample");
+    uut.setLimit(MessageType.MarketPosition, 24, MessageStore.Overflow.COALESCE_LATEST);
+    MarketPosition p1 = new MarketPosition(broker, 361, 1.0);
+    MarketPosition p2 = new MarketPosition(broker, 362, 2.0);
+    MarketPosition p3 = new MarketPosition(broker, 361, 3.0);
+    uut.add(p1);
+    uut.add(p2);
+    uut.add(p3);
+    assertEquals(Map.of("MarketPosition", List.of(p2, p3)), uut.drain(),
+                 "latest position per timeslot");
+    assertEquals(1l, uut.getCoalesced(MessageType.MarketPosition));
+    assertEquals(0l, uut.getDropped(MessageType.MarketPosition));
+  }
+
+  @Test
+  void testBlock () throws Exception
+  {
+    uut.setLimit(MessageType.ClearedTrade, 1, MessageStore.Overflow.BLOCK);
+    uut.setBlockTimeout(10000l);
+    uut.add(MessageType.ClearedTrade, "a1");
+    Thread writer = new Thread(() -> uut.add(MessageType.ClearedTrade, "a2"));
+    writer.start();
+    writer.join(200l);
+    assertTrue(writer.isAlive(), "blocked while full");
+    assertEquals(Map.of("ClearedTrade", List.of("a1")), uut.drain());
+    writer.join(2000l);
+    assertFalse(writer.isAlive(), "released by drain");
+    assertEquals(Map.of("ClearedTrade", List.of("a2")), uut.drain());
+
+    // gives up after the timeout
+    uut.setBlockTimeout(50l);
+    uut.add(MessageType.ClearedTrade, "a3");
+    uut.add(MessageType.ClearedTrade, "a4");
+    assertEquals(Map.of("ClearedTrade", List.of("a4")), uut.drain());
+    assertEquals(1l, uut.getDropped(MessageType.ClearedTrade));
+  }
+
+  @Test
+  void testPoll ()
+  {
+    long cursor = MessageStore.getSequence();
+    uut.add(MessageType.ClearedTrade, "a1");
+    uut.add(MessageType.Orderbook, "b1");
+    long next = MessageStore.getSequence();
+    assertEquals(Map.of("ClearedTrade", List.of("a1"), "Orderbook", List.of("b1")),
+                 uut.poll(cursor, next));
+    uut.add(MessageType.ClearedTrade, "a2");
+    long last = MessageStore.getSequence();
+    assertEquals(Map.of("ClearedTrade", List.of("a2")), uut.poll(next, last),
+                 "only what arrived after the cursor");
+    assertTrue(uut.poll(last, MessageStore.getSequence()).isEmpty());
+    assertEquals(Map.of("ClearedTrade", List.of("a1"), "Orderbook", List.of("b1")),
+                 uut.poll(cursor, next), "polling does not consume");
+
+    // drops and drains are reflected
+    uut.setLimit(MessageType.ClearedTrade, 1, MessageStore.Overflow.DROP_OLDEST);
+    uut.add(MessageType.ClearedTrade, "a3");
+    assertEquals(Map.of("ClearedTrade", List.of("a3"), "Orderbook", List.of("b1")),
+                 uut.poll(cursor, MessageStore.getSequence()));
+    uut.drain();
+    assertTrue(uut.poll(cursor, MessageStore.getSequence()).isEmpty());
+  }
+
+  @Test
+  void testConcurrentAdd () throws Exception
+  {
+    int perThread = 20000;
+    Thread[] producers = new Thread[4];
+    for (int i = 0; i < producers.length; i++) {
+      producers[i] = new Thread(() -> {
+        for (int n = 0; n < perThread; n++)
+          uut.add(MessageType.ClearedTrade, n);
+      });
+      producers[i].start();
+    }
+    int total = 0;
+    while (anyAlive(producers)) {
+      List<Object> msgs = uut.drain().get("ClearedTrade");
+      if (null != msgs)
+        total += msgs.size();
+    }
+    List<Object> rest = uut.drain().get("ClearedTrade");
+    if (null != rest)
+      total += rest.size();
+    assertEquals(perThread * producers.length, total, "nothing lost");
+  }
+
+  private boolean anyAlive (Thread[] threads)
+  {
+    for (Thread thread : threads) {
+      if (thread.isAlive())
+        return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.joda.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Orderbook;
+import org.powertac.common.OrderbookOrder;
+
+/**
+ * @author John Collins
+ */
+class OrderbookCurvesTest
+{
+  private OrderbookCurves uut;
+
+  @BeforeEach
+  void setUp ()
+  {
+    uut = new OrderbookCurves(3);
+  }
+
+  private Orderbook book (int target, Double clearingPrice)
+  {
+    Orderbook result = new Orderbook(target, clearingPrice, new Instant(0l));
+    result.addAsk(new OrderbookOrder(-2.0, 40.0));
+    result.addAsk(new OrderbookOrder(-1.0, 35.0));
+    result.addAsk(new OrderbookOrder(-3.0, 50.0));
+    result.addBid(new OrderbookOrder(1.5, -20.0));
+    result.addBid(new OrderbookOrder(0.5, -25.0));
+    return result;
+  }
+
+  @Test
+  void testCurves ()
+  {
+    OrderbookCurves.Curve curve = uut.add(book(362, 30.0), 360);
+    assertEquals(362, curve.getTimeslot());
+    assertEquals(30.0, curve.getClearingPrice(), 1e-9);
+    assertArrayEquals(new double[] {35.0, 40.0, 50.0}, curve.getAskPrices(), 1e-9);
+    assertArrayEquals(new double[] {1.0, 3.0, 6.0}, curve.getAskQuantities(), 1e-9);
+    assertArrayEquals(new double[] {25.0, 20.0}, curve.getBidPrices(), 1e-9);
+    assertArrayEquals(new double[] {0.5, 2.0}, curve.getBidQuantities(), 1e-9);
+  }
+
+  @Test
+  void testEstimate ()
+  {
+    uut.add(book(362, null), 360);
+    assertEquals(35.0, uut.estimateClearingPrice(362, 0.5), 1e-9);
+    assertEquals(40.0, uut.estimateClearingPrice(362, 2.5), 1e-9);
+    assertEquals(20.0, uut.estimateClearingPrice(362, -1.0), 1e-9, "selling");
+    assertTrue(Double.isNaN(uut.estimateClearingPrice(362, 7.0)), "too thin");
+    assertTrue(Double.isNaN(uut.estimateClearingPrice(363, 1.0)), "no book");
+    assertTrue(Double.isNaN(uut.getLatest(362).getClearingPrice()));
+  }
+
+  @Test
+  void testMarketOrdersFirst ()
+  {
+    Orderbook book = new Orderbook(362, null, new Instant(0l));
+    book.addAsk(new OrderbookOrder(-2.0, 40.0));
+    book.addAsk(new OrderbookOrder(-1.0, null));
+    OrderbookCurves.Curve curve = uut.add(book, 360);
+    assertEquals(Double.NEGATIVE_INFINITY, curve.getAskPrices()[0]);
+    assertEquals(40.0, curve.getAskPrices()[1], 1e-9);
+  }
+
+  @Test
+  void testEmptyWindow ()
+  {
+    uut = new OrderbookCurves(0);
+    uut.add(book(362, 30.0), 360);
+    uut.add(book(363, 31.0), 361);
+    assertEquals(1, uut.size(), "only the current timeslot");
+    assertNotNull(uut.getLatest(363));
+    assertNull(uut.getLatest(362));
+  }
+
+  @Test
+  void testWindow ()
+  {
+    uut.add(book(362, 30.0), 360);
+    uut.add(book(363, 31.0), 360);
+    uut.add(book(362, 32.0), 361);
+    assertEquals(2, uut.getHistory(362).size());
+    assertEquals(32.0, uut.getLatest(362).getClearingPrice(), 1e-9);
+    uut.add(book(364, 33.0), 363);
+    assertEquals(2, uut.size(), "timeslot 360 aged out");
+    assertNull(uut.getLatest(363));
+    assertEquals(1, uut.getHistory(362).size());
+  }
+}
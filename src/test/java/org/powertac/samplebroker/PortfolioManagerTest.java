@@ -18,6 +18,10 @@ package org.powertac.samplebroker;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 
 import org.joda.time.DateTime;
@@ -25,12 +29,20 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffTransaction;
 import org.powertac.common.TimeService;
 import org.powertac.common.Timeslot;
 import org.powertac.common.enumerations.PowerType;
 import org.powertac.common.msg.CustomerBootstrapData;
+import org.powertac.common.msg.SimEnd;
+import org.powertac.common.msg.TariffRevoke;
 import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.TariffRepo;
 import org.powertac.common.repo.TimeslotRepo;
 import org.powertac.samplebroker.core.BrokerPropertiesService;
 import org.powertac.samplebroker.core.PowerTacBroker;
@@ -43,6 +55,7 @@ public class PortfolioManagerTest
 {
   private TimeslotRepo timeslotRepo;
   private CustomerRepo customerRepo;
+  private TariffRepo tariffRepo;
   
   private PortfolioManagerService portfolioManagerService;
   private PowerTacBroker broker;
@@ -57,8 +70,10 @@ public class PortfolioManagerTest
     broker = mock(PowerTacBroker.class);
     timeslotRepo = mock(TimeslotRepo.class);
     customerRepo = new CustomerRepo();
+    tariffRepo = new TariffRepo();
     BrokerPropertiesService bps = mock(BrokerPropertiesService.class);
     when(broker.getUsageRecordLength()).thenReturn(7*24);
+    when(broker.getBroker()).thenReturn(new Broker("Sample"));
     portfolioManagerService = new PortfolioManagerService();
     ReflectionTestUtils.setField(portfolioManagerService,
                                  "timeslotRepo",
@@ -66,6 +81,9 @@ public class PortfolioManagerTest
     ReflectionTestUtils.setField(portfolioManagerService,
                                  "customerRepo",
                                  customerRepo);
+    ReflectionTestUtils.setField(portfolioManagerService,
+                                 "tariffRepo",
+                                 tariffRepo);
     ReflectionTestUtils.setField(portfolioManagerService,
                                  "propertiesService",
                                  bps);
@@ -74,6 +92,10 @@ public class PortfolioManagerTest
     // set the time
     baseTime =
         new DateTime(2011, 2, 1, 0, 0, 0, 0, DateTimeZone.UTC).toInstant();
+    TimeService timeService = new TimeService();
+    timeService.setBase(baseTime.getMillis()); // a Tuesday
+    ReflectionTestUtils.setField(portfolioManagerService,
+                                 "timeService", timeService);
   }
   
   /**
@@ -98,8 +120,10 @@ public class PortfolioManagerTest
     CustomerBootstrapData boot =
         new CustomerBootstrapData(podunk, PowerType.CONSUMPTION, podunkData);
     portfolioManagerService.handleMessage(boot);
+    assertFalse(portfolioManagerService.isPortfolioReady(), "midvale missing");
     boot = new CustomerBootstrapData(midvale, PowerType.CONSUMPTION, midvaleData);
     portfolioManagerService.handleMessage(boot);
+    assertTrue(portfolioManagerService.awaitPortfolioReady(0l));
     double[] podunkUsage = 
         portfolioManagerService.getRawUsageForCustomer(podunk).get(PowerType.CONSUMPTION);
     assertNotNull(podunkUsage, "podunk usage is recorded");
@@ -110,5 +134,354 @@ public class PortfolioManagerTest
     assertEquals(1.6, midvaleUsage[27], 1e-6, "correct usage value for midvale");
   }
   
-  // other tests needed...
+  /**
+   * Bootstrap data from an incomplete set is processed on activation
+   */
+  @Test
+  public void testPartialBootstrap ()
+  {
+    CustomerInfo podunk = new CustomerInfo("Podunk", 3);
+    customerRepo.add(podunk);
+    customerRepo.add(new CustomerInfo("Midvale", 1000));
+    double[] podunkData = new double[7*24];
+    Arrays.fill(podunkData, 3.6);
+    portfolioManagerService.handleMessage(
+        new CustomerBootstrapData(podunk, PowerType.CONSUMPTION, podunkData));
+    assertTrue(portfolioManagerService.getRawUsageForCustomer(podunk).isEmpty(),
+               "not yet processed");
+    portfolioManagerService.activate(360);
+    assertTrue(portfolioManagerService.isPortfolioReady());
+    double[] podunkUsage =
+        portfolioManagerService.getRawUsageForCustomer(podunk).get(PowerType.CONSUMPTION);
+    assertEquals(1.2, podunkUsage[100], 1e-6);
+  }
+
+  /**
+   * Profiles saved at the end of one game seed the next one
+   */
+  @Test
+  public void testWarmStart (@TempDir Path dir)
+  {
+    String file = dir.resolve("warm.bin").toString();
+    ReflectionTestUtils.setField(portfolioManagerService,
+                                 "warmStartFile", file);
+    CustomerInfo podunk = new CustomerInfo("Podunk", 3);
+    PortfolioManagerService.CustomerRecord record =
+        portfolioManagerService.getCustomerRecordByPowerType(PowerType.CONSUMPTION,
+                                                             podunk);
+    record.subscribedPopulation = 3;
+    record.produceConsume(6.0, 10);
+    portfolioManagerService.handleMessage(new SimEnd());
+    assertTrue(Files.exists(dir.resolve("warm.bin")));
+
+    // next game, same customer under a new id
+    portfolioManagerService.initialize(broker);
+    CustomerInfo podunk2 = new CustomerInfo("Podunk", 3);
+    double[] usage = portfolioManagerService.getRawUsageForCustomer(podunk2)
+        .getOrDefault(PowerType.CONSUMPTION, null);
+    assertNull(usage, "applied only when the record is created");
+    portfolioManagerService.getCustomerRecordByPowerType(PowerType.CONSUMPTION,
+                                                         podunk2);
+    usage = portfolioManagerService.getRawUsageForCustomer(podunk2)
+        .get(PowerType.CONSUMPTION);
+    assertEquals(2.0, usage[10], 1e-9);
+    assertEquals(0.0, usage[11], 1e-9);
+    portfolioManagerService.getCustomerRecordByPowerType(PowerType.PRODUCTION,
+                                                         podunk2);
+    assertEquals(0.0, portfolioManagerService.getRawUsageForCustomer(podunk2)
+                 .get(PowerType.PRODUCTION)[10], 1e-9, "power type must match");
+  }
+
+  /**
+   * Usage learned by the subscription records is saved, weighted by their
+   * populations
+   */
+  @Test
+  public void testWarmStartLearned (@TempDir Path dir)
+  {
+    String file = dir.resolve("warm.bin").toString();
+    ReflectionTestUtils.setField(portfolioManagerService,
+                                 "warmStartFile", file);
+    Broker me = new Broker("Sample");
+    CustomerInfo podunk = new CustomerInfo("Podunk", 30);
+    TariffSpecification spec1 = new TariffSpecification(me, PowerType.CONSUMPTION);
+    TariffSpecification spec2 = new TariffSpecification(me, PowerType.CONSUMPTION);
+    PortfolioManagerService.CustomerRecord profile =
+        portfolioManagerService.getCustomerRecordByPowerType(PowerType.CONSUMPTION,
+                                                             podunk);
+    profile.subscribedPopulation = 30;
+    profile.produceConsume(30.0, 11); // as from bootstrap data
+    PortfolioManagerService.CustomerRecord r1 =
+        portfolioManagerService.getCustomerRecordByTariff(spec1, podunk);
+    r1.signup(10);
+    r1.produceConsume(20.0, 10);
+    PortfolioManagerService.CustomerRecord r2 =
+        portfolioManagerService.getCustomerRecordByTariff(spec2, podunk);
+    r2.signup(20);
+    r2.produceConsume(80.0, 10);
+    portfolioManagerService.activate(10);
+    portfolioManagerService.handleMessage(new SimEnd());
+
+    portfolioManagerService.initialize(broker);
+    CustomerInfo podunk2 = new CustomerInfo("Podunk", 30);
+    portfolioManagerService.getCustomerRecordByPowerType(PowerType.CONSUMPTION,
+                                                         podunk2);
+    double[] usage = portfolioManagerService.getRawUsageForCustomer(podunk2)
+        .get(PowerType.CONSUMPTION);
+    assertEquals((2.0 * 10 + 4.0 * 20) / 30, usage[10], 1e-9, "learned");
+    assertEquals(1.0, usage[11], 1e-9, "not seen by the subscriptions");
+  }
+
+  /**
+   * Test batch tariff submission
+   */
+  @Test
+  public void testSubmitTariffs ()
+  {
+    long[] ids =
+        portfolioManagerService.submitTariffs(new String[] {"CONSUMPTION", "PRODUCTION"},
+                                              new double[] {-0.12, 0.08},
+                                              new double[] {-1.0, 0.0});
+    assertEquals(2, ids.length, "two tariffs");
+    TariffSpecification consumption = tariffRepo.findSpecificationById(ids[0]);
+    assertNotNull(consumption, "recorded in repo");
+    assertEquals(PowerType.CONSUMPTION, consumption.getPowerType());
+    assertEquals(-1.0, consumption.getPeriodicPayment(), 1e-6);
+    assertEquals(1, consumption.getRates().size());
+    assertEquals(PowerType.PRODUCTION,
+                 tariffRepo.findSpecificationById(ids[1]).getPowerType());
+    verify(broker, times(2)).sendMessage(any(TariffSpecification.class));
+  }
+
+  /**
+   * Test the incrementally maintained usage totals
+   */
+  @Test
+  public void testCollectUsage ()
+  {
+    CustomerInfo podunk = new CustomerInfo("Podunk", 30);
+    customerRepo.add(podunk);
+    CustomerInfo midvale = new CustomerInfo("Midvale", 1000);
+    customerRepo.add(midvale);
+    TariffSpecification spec =
+        new TariffSpecification(new Broker("Sample"), PowerType.CONSUMPTION);
+    PortfolioManagerService.CustomerRecord p =
+        portfolioManagerService.getCustomerRecordByTariff(spec, podunk);
+    PortfolioManagerService.CustomerRecord m =
+        portfolioManagerService.getCustomerRecordByTariff(spec, midvale);
+    p.signup(10);
+    m.signup(100);
+    p.produceConsume(20.0, 5); // 2 kWh each
+    m.produceConsume(300.0, 5); // 3 kWh each
+    assertEquals(0.0, portfolioManagerService.collectUsage(5), 1e-6,
+                 "deferred until activation");
+    portfolioManagerService.activate(5);
+    assertEquals(-320.0, portfolioManagerService.collectUsage(5), 1e-6);
+    assertEquals(-320.0, portfolioManagerService.collectUsage(5 + 168), 1e-6,
+                 "index wraps");
+
+    // population changes rescale the totals
+    p.signup(20);
+    m.withdraw(50);
+    assertEquals(-(30 * 2.0 + 50 * 3.0),
+                 portfolioManagerService.collectUsage(5), 1e-6);
+    double[] profile = portfolioManagerService.collectUsageProfile();
+    assertEquals(168, profile.length);
+    assertEquals(-210.0, profile[5], 1e-6);
+    assertEquals(0.0, profile[6], 1e-6);
+
+    // smoothing
+    m.produceConsume(100.0, 5); // 2 kWh each
+    portfolioManagerService.activate(5);
+    // podunk had no usage in this timeslot, so it is left alone
+    double expected = 30 * 2.0 + 50 * (0.3 * 2.0 + 0.7 * 3.0);
+    assertEquals(-expected, portfolioManagerService.collectUsage(5), 1e-6);
+    assertEquals(p.getUsage(5) + m.getUsage(5), expected, 1e-6,
+                 "same as summing the records");
+  }
+
+  /**
+   * Batch smoothing on activation matches smoothing one record at a time
+   */
+  @Test
+  public void testBatchSmoothing ()
+  {
+    TariffSpecification spec =
+        new TariffSpecification(new Broker("Sample"), PowerType.CONSUMPTION);
+    PortfolioManagerService.CustomerRecord[] records =
+        new PortfolioManagerService.CustomerRecord[5];
+    double[] expected = new double[records.length];
+    for (int i = 0; i < records.length; i++) {
+      CustomerInfo customer = new CustomerInfo("c" + i, 100);
+      customerRepo.add(customer);
+      records[i] = portfolioManagerService.getCustomerRecordByTariff(spec, customer);
+      records[i].signup(i * 10); // the first one has no subscribers
+    }
+    for (int ts = 0; ts < 3; ts++) {
+      for (int i = 0; i < records.length; i++) {
+        double kwh = 10.0 * (i + 1) + ts;
+        records[i].produceConsume(kwh, 7);
+        double perCustomer = (i == 0) ? 0.0 : kwh / (i * 10);
+        expected[i] = (expected[i] == 0.0) ? perCustomer
+            : 0.3 * perCustomer + (1.0 - 0.3) * expected[i];
+      }
+      portfolioManagerService.activate(ts);
+      for (int i = 0; i < records.length; i++)
+        assertEquals(expected[i] * i * 10, records[i].getUsage(7), 0.0,
+                     "record " + i + " after timeslot " + ts);
+    }
+  }
+
+  /**
+   * Publication and revocation fees have no customer, and leave the
+   * customer records alone
+   */
+  @Test
+  public void testTariffFees ()
+  {
+    Broker me = new Broker("Sample");
+    TariffSpecification spec = new TariffSpecification(me, PowerType.CONSUMPTION);
+    tariffRepo.addSpecification(spec);
+    portfolioManagerService.handleMessage(
+        new TariffTransaction(me, 5, TariffTransaction.Type.PUBLISH, spec,
+                              null, 0, 0.0, -100.0));
+    portfolioManagerService.handleMessage(
+        new TariffTransaction(me, 6, TariffTransaction.Type.REVOKE, spec,
+                              null, 0, 0.0, -50.0));
+    assertEquals(0, portfolioManagerService.getCustomerIds().length);
+    assertEquals(2, portfolioManagerService.getPendingMessageLists()
+                        .get("TariffTransaction").size());
+  }
+
+  /**
+   * Subscriptions withdrawn to zero or revoked are retired
+   */
+  @Test
+  public void testRetireSubscriptions ()
+  {
+    Broker me = new Broker("Sample");
+    CustomerInfo podunk = new CustomerInfo("Podunk", 30);
+    CustomerInfo midvale = new CustomerInfo("Midvale", 1000);
+    TariffSpecification spec1 = new TariffSpecification(me, PowerType.CONSUMPTION);
+    TariffSpecification spec2 = new TariffSpecification(me, PowerType.CONSUMPTION);
+    tariffRepo.addSpecification(spec1);
+    tariffRepo.addSpecification(spec2);
+    PortfolioManagerService.CustomerRecord p =
+        portfolioManagerService.getCustomerRecordByTariff(spec1, podunk);
+    p.signup(10);
+    p.produceConsume(20.0, 5);
+    PortfolioManagerService.CustomerRecord m =
+        portfolioManagerService.getCustomerRecordByTariff(spec2, midvale);
+    m.signup(100);
+    m.produceConsume(300.0, 5);
+
+    // podunk leaves before activation, and its usage goes with it
+    portfolioManagerService.handleMessage(
+        new TariffTransaction(me, 5, TariffTransaction.Type.WITHDRAW, spec1,
+                              podunk, 10, 0.0, 0.0));
+    assertTrue(p.retired);
+    assertEquals(0, portfolioManagerService.getSubscribedPopulations(0)[0]);
+    portfolioManagerService.activate(5);
+    assertEquals(-300.0, portfolioManagerService.collectUsage(5), 1e-6);
+    assertEquals(1, portfolioManagerService.getPortfolioUsageKeys().size());
+
+    // revoking spec2 retires midvale's record
+    when(broker.getBrokerUsername()).thenReturn("Sample");
+    portfolioManagerService.handleMessage(new TariffRevoke(me, spec2));
+    assertTrue(m.retired);
+    assertEquals(0.0, portfolioManagerService.collectUsage(5), 1e-6);
+    assertEquals(0, portfolioManagerService.getPortfolioUsageKeys().size());
+  }
+
+  /**
+   * Portfolio demand forecasts come from the per-record models, or from the
+   * usage profile for hours a model has not seen
+   */
+  @Test
+  public void testForecastUsage ()
+  {
+    TariffSpecification spec =
+        new TariffSpecification(new Broker("Sample"), PowerType.CONSUMPTION);
+    CustomerInfo podunk = new CustomerInfo("Podunk", 30);
+    PortfolioManagerService.CustomerRecord p =
+        portfolioManagerService.getCustomerRecordByTariff(spec, podunk);
+    p.signup(10);
+    // two days of 1 kWh per customer at 3:00, 2 kWh at 4:00
+    for (int day = 0; day < 2; day++) {
+      p.produceConsume(10.0, day * 24 + 3);
+      portfolioManagerService.activate(day * 24 + 3);
+      p.produceConsume(20.0, day * 24 + 4);
+      portfolioManagerService.activate(day * 24 + 4);
+    }
+    double[] forecast = portfolioManagerService.forecastUsage(48 + 3, 3);
+    assertEquals(-10.0, forecast[0], 1e-6);
+    assertEquals(-20.0, forecast[1], 1e-6);
+    assertEquals(0.0, forecast[2], 1e-6, "nothing seen at 5:00");
+  }
+
+  /**
+   * Weekly tariff costs for each customer profile
+   */
+  @Test
+  public void testEvaluateTariffs ()
+  {
+    CustomerInfo podunk = new CustomerInfo("Podunk", 3);
+    CustomerInfo midvale = new CustomerInfo("Midvale", 1000);
+    PortfolioManagerService.CustomerRecord p =
+        portfolioManagerService.getCustomerRecordByPowerType(PowerType.CONSUMPTION,
+                                                             podunk);
+    p.subscribedPopulation = 3;
+    p.produceConsume(-10.0, 0);
+    PortfolioManagerService.CustomerRecord m =
+        portfolioManagerService.getCustomerRecordByPowerType(PowerType.PRODUCTION,
+                                                             midvale);
+    m.subscribedPopulation = 1000;
+    m.produceConsume(50.0, 0);
+    TariffSpecification spec =
+        new TariffSpecification(new Broker("Other"), PowerType.CONSUMPTION);
+    spec.addRate(new Rate().withValue(-0.2));
+    tariffRepo.addSpecification(spec);
+
+    ByteBuffer buffer =
+        ByteBuffer.wrap(portfolioManagerService
+                        .evaluateTariffs(new long[] {spec.getId(), -1l}))
+        .order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(2, buffer.getInt());
+    assertEquals(2, buffer.getInt());
+    assertEquals(-10.0 / 3 * -0.2, buffer.getDouble(), 1e-9);
+    assertTrue(Double.isNaN(buffer.getDouble()), "no consumption profile");
+    assertTrue(Double.isNaN(buffer.getDouble()), "unknown tariff");
+  }
+
+  /**
+   * Customers and tariffs are numbered by slot in order of arrival
+   */
+  @Test
+  public void testSlots ()
+  {
+    TariffSpecification spec1 =
+        new TariffSpecification(new Broker("Sample"), PowerType.CONSUMPTION);
+    TariffSpecification spec2 =
+        new TariffSpecification(new Broker("Sample"), PowerType.CONSUMPTION);
+    CustomerInfo podunk = new CustomerInfo("Podunk", 30);
+    CustomerInfo midvale = new CustomerInfo("Midvale", 1000);
+    portfolioManagerService.getCustomerRecordByTariff(spec1, podunk).signup(10);
+    portfolioManagerService.getCustomerRecordByTariff(spec2, midvale).signup(200);
+    portfolioManagerService.getCustomerRecordByTariff(spec2, podunk).signup(5);
+
+    assertEquals(0, portfolioManagerService.getTariffSlot(spec1.getId()));
+    assertEquals(1, portfolioManagerService.getTariffSlot(spec2.getId()));
+    assertEquals(-1, portfolioManagerService.getTariffSlot(-3l));
+    assertEquals(1, portfolioManagerService.getCustomerSlot(midvale.getId()));
+    assertArrayEquals(new long[] {spec1.getId(), spec2.getId()},
+                      portfolioManagerService.getTariffIds());
+    assertArrayEquals(new String[] {"Podunk", "Midvale"},
+                      portfolioManagerService.getCustomerNames());
+    assertArrayEquals(new int[] {5, 200},
+                      portfolioManagerService.getSubscribedPopulations(1));
+    assertArrayEquals(new int[] {0, 0, 1, 0, 1, 1},
+                      portfolioManagerService.getPortfolioUsageSlots());
+    assertEquals(spec2.getId() + "/Midvale",
+                 portfolioManagerService.getPortfolioUsageKeys().get(2));
+  }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author John Collins
+ */
+class SharedRingBufferTest
+{
+  Path file;
+  SharedRingBuffer uut;
+
+  @BeforeEach
+  void setUp () throws Exception
+  {
+    file = Files.createTempFile("ring", ".buf");
+    uut = new SharedRingBuffer(file, 256);
+  }
+
+  @AfterEach
+  void tearDown () throws Exception
+  {
+    uut.close();
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  void testPublish () throws Exception
+  {
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("A", new byte[] {1, 2, 3});
+    assertEquals(1l, uut.publish(360, entries));
+
+    ByteBuffer view = read();
+    assertEquals(SharedRingBuffer.MAGIC, view.getInt(0));
+    assertEquals(1l, view.getLong(SharedRingBuffer.COMMITTED_SEQUENCE));
+    int offset = (int) view.getLong(SharedRingBuffer.COMMITTED_OFFSET);
+    assertEquals(SharedRingBuffer.HEADER_SIZE, offset);
+    assertEquals(1l, view.getLong(offset), "frame committed");
+    assertEquals(360, view.getInt(offset + 8));
+    assertEquals(1, view.getInt(offset + 12));
+    int pos = offset + SharedRingBuffer.FRAME_HEADER_SIZE;
+    assertEquals(1, view.getShort(pos));
+    assertEquals('A', view.get(pos + 2));
+    assertEquals(3, view.getInt(pos + 3));
+    assertEquals(3, view.get(pos + 9));
+  }
+
+  @Test
+  void testWrap () throws Exception
+  {
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    entries.put("A", new byte[60]);
+    // each frame takes 96 bytes, so the third one wraps
+    uut.publish(1, entries);
+    uut.publish(2, entries);
+    assertEquals(3l, uut.publish(3, entries));
+    ByteBuffer view = read();
+    assertEquals(SharedRingBuffer.HEADER_SIZE,
+                 view.getLong(SharedRingBuffer.COMMITTED_OFFSET), "wrapped");
+    assertEquals(2l, view.getLong(SharedRingBuffer.OLDEST_SEQUENCE),
+                 "first frame overwritten");
+    assertEquals(-1l, uut.publish(4, Map.of("B", new byte[300])), "too large");
+    assertEquals(3l, uut.getSequence());
+  }
+
+  // A frame left at the end of the ring from the last lap must be retired
+  // when a wrapped write overwrites a newer frame at the start
+  @Test
+  void testWrapPastTailFrame () throws Exception
+  {
+    uut.close();
+    uut = new SharedRingBuffer(file, 600);
+    uut.publish(1, frame(296)); // [64, 360)
+    uut.publish(2, frame(200)); // [360, 560)
+    uut.publish(3, frame(104)); // [560, 664), the end of the ring
+    uut.publish(4, frame(248)); // wraps to [64, 312)
+    uut.publish(5, frame(248)); // [312, 560)
+    ByteBuffer view = read();
+    assertEquals(3l, view.getLong(SharedRingBuffer.OLDEST_SEQUENCE));
+    assertEquals(6l, uut.publish(6, frame(152))); // wraps over frame 4
+    view = read();
+    assertEquals(SharedRingBuffer.HEADER_SIZE,
+                 view.getLong(SharedRingBuffer.COMMITTED_OFFSET));
+    assertEquals(5l, view.getLong(SharedRingBuffer.OLDEST_SEQUENCE),
+                 "frames 3 and 4 retired");
+  }
+
+  // entries that make a frame of the given aligned length
+  private Map<String, byte[]> frame (int length)
+  {
+    int payload = length - SharedRingBuffer.FRAME_HEADER_SIZE - 2 - 1 - 4;
+    return Map.of("A", new byte[payload]);
+  }
+
+  private ByteBuffer read () throws Exception
+  {
+    return ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
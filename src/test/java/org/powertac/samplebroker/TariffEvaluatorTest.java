@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Rate;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * @author John Collins
+ */
+class TariffEvaluatorTest
+{
+  private TariffEvaluator uut;
+  private TariffSpecification flat;
+  private TariffSpecification tou;
+
+  @BeforeEach
+  void setUp ()
+  {
+    uut = new TariffEvaluator();
+    Broker broker = new Broker("Other");
+    flat = new TariffSpecification(broker, PowerType.CONSUMPTION)
+        .withPeriodicPayment(-1.0);
+    flat.addRate(new Rate().withValue(-0.1));
+    // weekday daytime peak over a flat base
+    tou = new TariffSpecification(broker, PowerType.CONSUMPTION);
+    tou.addRate(new Rate().withValue(-0.1));
+    tou.addRate(new Rate().withWeeklyBegin(1).withWeeklyEnd(5)
+                .withDailyBegin(7).withDailyEnd(18).withValue(-0.2));
+  }
+
+  @Test
+  void testPriceTable ()
+  {
+    double[] table = uut.getPriceTable(tou);
+    assertEquals(168, table.length);
+    assertEquals(-0.1, table[6], 1e-9, "Monday 6:00");
+    assertEquals(-0.2, table[7], 1e-9, "Monday 7:00");
+    assertEquals(-0.2, table[4 * 24 + 18], 1e-9, "Friday 18:00");
+    assertEquals(-0.1, table[4 * 24 + 19], 1e-9, "Friday 19:00");
+    assertEquals(-0.1, table[5 * 24 + 12], 1e-9, "Saturday noon");
+    assertSame(table, uut.getPriceTable(tou), "cached");
+    assertEquals(1, uut.size());
+  }
+
+  @Test
+  void testWrappingRange ()
+  {
+    Rate night = new Rate().withDailyBegin(22).withDailyEnd(5).withValue(-0.05);
+    assertTrue(TariffEvaluator.applies(night, 23));
+    assertTrue(TariffEvaluator.applies(night, 24 + 5));
+    assertFalse(TariffEvaluator.applies(night, 24 + 6));
+  }
+
+  @Test
+  void testEvaluate ()
+  {
+    UsageMatrix usage = new UsageMatrix(168, false);
+    int row = usage.allocate();
+    usage.set(row, 0, 1.0);
+    usage.set(row, 10, 2.0);
+    TariffSpecification[] tariffs = {flat, tou, null};
+    int[][] rows = {{row, -1}, {row, -1}, {row, row}};
+    double[] costs = uut.evaluate(tariffs, rows, usage, 0);
+    assertEquals(6, costs.length);
+    assertEquals(-0.3 - 7.0, costs[0], 1e-9);
+    assertTrue(Double.isNaN(costs[1]), "no profile");
+    assertEquals(-0.1 - 0.4, costs[2], 1e-9, "peak at Monday 10:00");
+    assertTrue(Double.isNaN(costs[4]), "unknown tariff");
+
+    // starting on Saturday, both hours are off-peak
+    costs = uut.evaluate(tariffs, rows, usage, 5 * 24);
+    assertEquals(-0.3, costs[2], 1e-9);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author John Collins
+ */
+class UsageForecasterTest
+{
+  private UsageForecaster uut;
+
+  @BeforeEach
+  void setUp ()
+  {
+    uut = new UsageForecaster();
+  }
+
+  @Test
+  void testHourOfDay ()
+  {
+    int model = uut.allocate();
+    assertTrue(Double.isNaN(uut.forecast(model, 0, 0)), "nothing seen");
+    for (int ts = 0; ts < 24 * 14; ts++)
+      uut.observe(model, ts, ts % 168, (ts % 24 < 12) ? 1.0 : 3.0);
+    assertEquals(1.0, uut.forecast(model, 408, 408 % 168), 1e-6);
+    assertEquals(3.0, uut.forecast(model, 420, 420 % 168), 1e-6);
+  }
+
+  @Test
+  void testDayOfWeek ()
+  {
+    int model = uut.allocate();
+    // weekends use 1 kWh more at every hour
+    for (int ts = 0; ts < 168 * 40; ts++)
+      uut.observe(model, ts, ts % 168, (ts % 168 >= 120) ? 3.0 : 2.0);
+    double weekday = uut.forecast(model, 0, 10);
+    double weekend = uut.forecast(model, 0, 130);
+    assertEquals(1.0, weekend - weekday, 0.1);
+  }
+
+  @Test
+  void testTemperature ()
+  {
+    int model = uut.allocate();
+    // usage rises by 0.5 per degree below the mean of 10
+    for (int ts = 0; ts < 24 * 30; ts++) {
+      double temperature = 10.0 + 8.0 * Math.sin(ts * 0.37);
+      uut.setTemperature(ts, temperature, true);
+      uut.observe(model, ts, ts % 168, 2.0 - 0.5 * (temperature - 10.0));
+    }
+    assertEquals(-0.5, uut.getTemperatureSensitivity(model), 0.1);
+    uut.setTemperature(24 * 30, 0.0, false);
+    double cold = uut.forecast(model, 24 * 30, (24 * 30) % 168);
+    assertTrue(cold > 5.0, "cold forecast " + cold);
+    assertTrue(Double.isNaN(uut.getTemperature(24 * 30 + 1)));
+  }
+
+  @Test
+  void testReuse ()
+  {
+    int first = uut.allocate();
+    uut.observe(first, 0, 0, 5.0);
+    uut.release(first);
+    int second = uut.allocate();
+    assertEquals(first, second);
+    assertTrue(Double.isNaN(uut.forecast(second, 0, 0)), "reset on reuse");
+  }
+}
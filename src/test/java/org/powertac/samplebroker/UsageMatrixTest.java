@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * @author John Collins
+ */
+class UsageMatrixTest
+{
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testCopyOnWrite (boolean offHeap)
+  {
+    UsageMatrix uut = new UsageMatrix(24, offHeap);
+    int profile = uut.allocate();
+    uut.set(profile, 3, 1.5);
+    int shared = uut.share(profile);
+    assertEquals(profile, shared);
+    assertEquals(1.5, uut.get(shared, 3), 1e-9);
+
+    int copy = uut.writable(shared);
+    assertNotEquals(profile, copy, "shared row is copied");
+    uut.set(copy, 3, 2.5);
+    assertEquals(1.5, uut.get(profile, 3), 1e-9, "original untouched");
+    assertEquals(copy, uut.writable(copy), "sole user writes in place");
+    assertEquals(profile, uut.writable(profile));
+    assertEquals(2, uut.size());
+
+    uut.release(copy);
+    assertEquals(1, uut.size());
+    int reused = uut.allocate();
+    assertEquals(copy, reused);
+    assertEquals(0.0, uut.get(reused, 3), 1e-9, "reused rows are cleared");
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void testGrowAndPack (boolean offHeap)
+  {
+    UsageMatrix uut = new UsageMatrix(4, offHeap);
+    int[] rows = new int[200];
+    for (int r = 0; r < rows.length; r++) {
+      rows[r] = uut.allocate();
+      uut.set(rows[r], r % 4, r);
+    }
+    assertEquals(199.0, uut.get(rows[199], 3), 1e-9, "survives growth");
+    assertEquals(5.0, uut.get(rows[5], 1), 1e-9);
+
+    byte[] packed = uut.pack(new int[] {rows[5], rows[2]}, new double[] {2.0, 1.0});
+    ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+    assertEquals(2, buffer.getInt());
+    assertEquals(4, buffer.getInt());
+    buffer.getDouble();
+    assertEquals(10.0, buffer.getDouble(), 1e-9);
+    buffer.getDouble();
+    buffer.getDouble();
+    buffer.getDouble();
+    buffer.getDouble();
+    assertEquals(2.0, buffer.getDouble(), 1e-9);
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2021 by John E. Collins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.samplebroker;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author John Collins
+ */
+class WarmStartTest
+{
+  @Test
+  void testRoundTrip (@TempDir Path dir)
+  {
+    Path file = dir.resolve("warm.bin");
+    Map<String, double[]> profiles = new LinkedHashMap<>();
+    profiles.put("Podunk/CONSUMPTION", new double[] {1.0, 2.0, 3.0});
+    profiles.put("Åsgård/PRODUCTION", new double[] {-4.0, 0.0, 0.5});
+    Map<String, double[]> stats = new LinkedHashMap<>();
+    stats.put("Other/CONSUMPTION", new double[] {3.0, -0.12, -0.15});
+    assertTrue(WarmStart.write(file, 3, profiles, stats));
+
+    WarmStart uut = WarmStart.load(file, 3);
+    assertNotNull(uut);
+    assertArrayEquals(new double[] {1.0, 2.0, 3.0},
+                      uut.getProfile("Podunk/CONSUMPTION"));
+    assertArrayEquals(new double[] {-4.0, 0.0, 0.5},
+                      uut.getProfile("Åsgård/PRODUCTION"));
+    assertNull(uut.getProfile("Podunk/PRODUCTION"));
+    assertArrayEquals(new double[] {3.0, -0.12, -0.15},
+                      uut.getStats().get("Other/CONSUMPTION"));
+  }
+
+  @Test
+  void testRejects (@TempDir Path dir) throws Exception
+  {
+    Path file = dir.resolve("warm.bin");
+    assertNull(WarmStart.load(file, 3), "missing");
+    WarmStart.write(file, 3, new LinkedHashMap<>(), new LinkedHashMap<>());
+    assertNull(WarmStart.load(file, 168), "wrong profile length");
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    assertNull(WarmStart.load(file, 3), "not a warm-start file");
+  }
+}